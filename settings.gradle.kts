@@ -17,3 +17,4 @@ include("tech-history")
 include("tech-sparkjava")
 include("tech-quarkus")
 include("tech-quarkus-deployment")
+include("tech-benchmarks")
@@ -0,0 +1,45 @@
+plugins {
+    java
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+repositories {
+    mavenCentral()
+    mavenLocal()
+}
+
+group = "org.gamboni"
+version = "0.0.4-SNAPSHOT"
+
+dependencies {
+    val lombok = "org.projectlombok:lombok:1.18.30"
+
+    jmh(project(":tech-history"))
+    jmh(platform("io.quarkus:quarkus-bom:3.15.1"))
+    jmh(project(":tech-quarkus"))
+    jmhAnnotationProcessor(project(":tech-web"))
+
+    jmhCompileOnly(lombok)
+    jmhAnnotationProcessor(lombok)
+
+    jmh(libs.guava)
+    jmh("com.fasterxml.jackson.core:jackson-databind:2.16.1")
+}
+
+// Java 21 rather than 17 like the other modules, for ReconnectStormBenchmark to compare worker and virtual threads.
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(21)
+    }
+}
+
+jmh {
+    warmupIterations = 2
+    iterations = 5
+    fork = 1
+    // report allocation per operation alongside timings
+    profilers = listOf("gc")
+    // machine-readable results, to track regressions across builds
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+}
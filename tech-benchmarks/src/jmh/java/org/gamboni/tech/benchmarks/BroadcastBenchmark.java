@@ -0,0 +1,92 @@
+package org.gamboni.tech.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.gamboni.tech.history.event.StampedEventList;
+import org.gamboni.tech.history.event.TextEvent;
+import org.gamboni.tech.web.ws.BroadcastTarget;
+import org.gamboni.tech.web.ws.ClientCollection;
+import org.gamboni.tech.web.ws.EncodedPayload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/** {@link ClientCollection#broadcast} to in-memory clients, including serialisation. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "500"})
+    int clients;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ClientCollection<Integer> collection;
+    private StampedEventList payload;
+
+    @Setup
+    public void setUp() {
+        collection = new ClientCollection<>(this::encode);
+        for (int i = 0; i < clients; i++) {
+            collection.put(i, new FakeTarget());
+        }
+        payload = new StampedEventList(1, List.of(
+                new TextEvent("item", "1", "one"),
+                new TextEvent("item", "2", "two")));
+    }
+
+    private Object encode(Object value) {
+        try {
+            return new EncodedPayload(mapper.writeValueAsString(value), value);
+        } catch (JsonProcessingException e) {
+            return value;
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        collection.broadcast(payload);
+    }
+
+    @Benchmark
+    public void broadcastPerClient() {
+        collection.broadcast(target -> Optional.of(payload));
+    }
+
+    /** Only counts the characters it would send. */
+    private static class FakeTarget implements BroadcastTarget {
+        long sent = 0;
+
+        @Override
+        public void sendOrThrow(Object payload) {
+            sent += (payload instanceof EncodedPayload encoded) ?
+                    encoded.text().length() :
+                    payload.toString().length();
+        }
+
+        @Override
+        public void sendOrLog(Object payload) {
+            sendOrThrow(payload);
+        }
+
+        @Override
+        public void onClose(Runnable task) {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void markClosed() {}
+    }
+}
@@ -0,0 +1,92 @@
+package org.gamboni.tech.benchmarks;
+
+import org.gamboni.tech.history.ClientStateHandler;
+import org.gamboni.tech.web.js.JavaScript;
+import org.gamboni.tech.web.ui.AbstractPage;
+import org.gamboni.tech.web.ui.Page;
+import org.gamboni.tech.web.ui.ScriptMember;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.gamboni.tech.web.js.JavaScript.*;
+
+/** Generation of the client-side event dispatch code ({@code applyUpdate}) with many registered handlers. With
+ * {@code tables}, the handler is added to a page so that it may generate lookup tables instead of an if-else
+ * chain. The size of the generated code is printed during setup. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ClientStateHandlerBenchmark {
+
+    @Param({"10", "200"})
+    int handlers;
+
+    @Param({"false", "true"})
+    boolean tables;
+
+    private ClientStateHandler handler;
+    private final List<ScriptMember> members = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        handler = new ClientStateHandler() {
+            @Override
+            protected JsExpression helloValue(JsExpression stamp) {
+                return stamp;
+            }
+        };
+        if (tables) {
+            handler.addTo(new Page<>() {
+                @Override
+                public String freshGlobal(String base) {
+                    return base;
+                }
+
+                @Override
+                public String freshElementId(String base) {
+                    return base;
+                }
+
+                @Override
+                public void addToOnLoad(Function<AbstractPage.OnLoad<Object>, JsFragment> code) {
+                }
+
+                @Override
+                public void addToScript(ScriptMember... members) {
+                    ClientStateHandlerBenchmark.this.members.addAll(List.of(members));
+                }
+            });
+        }
+        for (int i = 0; i < handlers; i++) {
+            String key = "k" + (i % 20);
+            String id = "id" + i;
+            handler.addHandler((event, callback) -> {
+                        callback.expect(event.dot("key").eq(key));
+                        callback.expect(event.dot("id").eq(id));
+                        return event;
+                    },
+                    event -> getElementById(literal(id)).dot("textContent").set(event.dot("text")));
+        }
+        System.out.printf("%d handlers, tables=%s: %d characters generated%n", handlers, tables, generate().length());
+    }
+
+    @Benchmark
+    public String generate() {
+        StringBuilder code = new StringBuilder();
+        for (var member : members) {
+            code.append(member.render());
+        }
+        return code.append(handler.handleEvent(new JsGlobal("message")).format(JavaScript.Scope.empty())).toString();
+    }
+}
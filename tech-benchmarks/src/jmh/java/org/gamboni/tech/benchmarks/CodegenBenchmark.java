@@ -0,0 +1,69 @@
+package org.gamboni.tech.benchmarks;
+
+import org.gamboni.tech.web.js.JavaScript;
+import org.gamboni.tech.web.ui.Script;
+import org.gamboni.tech.web.ui.ScriptMember;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.gamboni.tech.web.js.JavaScript.*;
+
+/** JavaScript generation: rendering the members of a script with many functions, as done once by
+ * {@link Script#render()}, and {@link JavaScript.JsFragment#format(JavaScript.Scope)} of a single large statement.
+ * Run with the {@code gc} profiler (enabled in the build) to compare allocation per operation. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class CodegenBenchmark {
+
+    /** Number of functions in the script, and of branches in the statement. */
+    @Param({"10", "1000"})
+    int size;
+
+    private final List<ScriptMember> members = new ArrayList<>();
+    private JsStatement statement;
+
+    @Setup
+    public void setUp() {
+        List<JsStatement> branches = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            JsStatement body = branch(i);
+            members.add(new Fun1("f" + i).declare(a -> body));
+            branches.add(body);
+        }
+        statement = seq(branches);
+    }
+
+    private static JsStatement branch(int i) {
+        JsExpression event = new JsGlobal("event");
+        return _if(event.dot("key").eq("k" + i).and(event.dot("id").eq(i)),
+                let(getElementById(literal("e" + i)), elt -> seq(
+                        elt.dot("textContent").set(event.dot("text").plus(" (" + i + ")")),
+                        consoleLog(obj("id", literal(i), "values", array(literal(1), literal("two")))))));
+    }
+
+    /** Script caches its rendering, so render its would-be members directly. */
+    @Benchmark
+    public String renderScript() {
+        var out = new StringBuilder();
+        for (var member : members) {
+            member.renderTo(out);
+        }
+        return out.toString();
+    }
+
+    @Benchmark
+    public String formatStatement() {
+        return statement.format(JavaScript.Scope.empty());
+    }
+}
@@ -0,0 +1,53 @@
+package org.gamboni.tech.benchmarks;
+
+import org.gamboni.tech.history.ClientStateHandler;
+import org.gamboni.tech.history.event.ElementRemovedEventValues;
+import org.gamboni.tech.history.event.NewStateEventValues;
+import org.gamboni.tech.history.event.TextEventValues;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.gamboni.tech.web.js.JavaScript.*;
+
+/** Registration of many handlers in a {@link ClientStateHandler}, each matching one of three event types through
+ * {@link ClientStateHandler.MatchCallback#expectOneOf}, so that every matcher runs once per type. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class HandlerRegistrationBenchmark {
+
+    @Param({"100", "500"})
+    int handlers;
+
+    @Benchmark
+    public ClientStateHandler register() {
+        var handler = new ClientStateHandler() {
+            @Override
+            protected JsExpression helloValue(JsExpression stamp) {
+                return stamp;
+            }
+        };
+        for (int i = 0; i < handlers; i++) {
+            String key = "k" + (i % 20);
+            String id = "id" + i;
+            handler.addHandler((event, callback) -> {
+                        var wrapped = callback.expectOneOf(
+                                NewStateEventValues.of(event),
+                                TextEventValues.of(event),
+                                ElementRemovedEventValues.of(event));
+                        callback.expect(wrapped.dot("key").eq(key));
+                        callback.expect(wrapped.dot("id").eq(id));
+                        return wrapped;
+                    },
+                    event -> getElementById(literal(id)).dot("className").set(event.dot("@type")));
+        }
+        return handler;
+    }
+}
@@ -0,0 +1,94 @@
+package org.gamboni.tech.benchmarks;
+
+import org.gamboni.tech.history.HistoryStore;
+import org.gamboni.tech.history.InMemoryHistoryStore;
+import org.gamboni.tech.history.Stamped;
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.web.ws.BroadcastTarget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/** Throughput of {@link HistoryStore#update(java.util.function.Consumer)} against
+ * {@link HistoryStore#update(Object, java.util.function.Consumer)}, with transactions that spend most of their
+ * time waiting (as they would on a database round trip).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HistoryStoreUpdateBenchmark {
+
+    /** Simulated time spent by a transaction waiting for storage. */
+    private static final long WORK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        final BenchmarkStore store = new BenchmarkStore();
+    }
+
+    @State(Scope.Thread)
+    public static class Partition {
+        private static final AtomicInteger counter = new AtomicInteger();
+        Integer key;
+
+        @Setup
+        public void setUp() {
+            key = counter.incrementAndGet();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object globalSingleThread(Store state) {
+        return state.store.update(BenchmarkStore::work);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object globalEightThreads(Store state) {
+        return state.store.update(BenchmarkStore::work);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object partitionedEightThreads(Store state, Partition partition) {
+        return state.store.update(partition.key, BenchmarkStore::work);
+    }
+
+    private record Snapshot(long stamp) implements Stamped {}
+
+    private static class BenchmarkStore extends InMemoryHistoryStore<Object, Snapshot, HistoryStore.AbstractUpdateSession> {
+
+        static void work(AbstractUpdateSession session) {
+            LockSupport.parkNanos(WORK_NANOS);
+        }
+
+        @Override
+        public Snapshot getSnapshot(Object query) {
+            return new Snapshot(getStamp());
+        }
+
+        @Override
+        protected AbstractUpdateSession newTransaction(long stamp) {
+            return new AbstractUpdateSession(stamp);
+        }
+
+        @Override
+        protected List<? extends Event> internalAddListener(BroadcastTarget client, Object query, long since) {
+            return List.of();
+        }
+
+        @Override
+        public void removeListener(BroadcastTarget client) {
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.gamboni.tech.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.websockets.next.WebSocketConnection;
+import io.smallrye.mutiny.Uni;
+import org.gamboni.tech.history.HistoryStore;
+import org.gamboni.tech.history.InMemoryHistoryStore;
+import org.gamboni.tech.history.Stamped;
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.quarkus.QuarkusWebSocket;
+import org.gamboni.tech.web.ws.BroadcastTarget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** Time taken by {@link QuarkusWebSocket#onMessage} to resynchronise a burst of clients reconnecting at once (for
+ * instance after a server restart), when each resynchronisation blocks on a database query in
+ * {@link HistoryStore#internalAddListener}, with each {@link QuarkusWebSocket.ExecutionMode execution mode} and
+ * {@link QuarkusWebSocket.ConcurrencyMode concurrency mode}. Messages arrive on a bounded worker pool, sized like the
+ * default Quarkus one.
+ * <p>
+ *     Connections are stubs: they ignore what is sent to them.
+ * </p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ReconnectStormBenchmark {
+
+    /** Simulated time spent by a resynchronisation waiting for storage. */
+    private static final long QUERY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    /** Default value of {@code quarkus.thread-pool.max-threads} on machines with up to 25 cores. */
+    private static final int WORKER_THREADS = 200;
+
+    @Param({"1000", "10000"})
+    int clients;
+
+    @Param({"WORKER", "VIRTUAL_THREADS"})
+    QuarkusWebSocket.ExecutionMode executionMode;
+
+    @Param({"GLOBAL", "PER_CONNECTION"})
+    QuarkusWebSocket.ConcurrencyMode concurrencyMode;
+
+    private ExecutorService workers;
+    private ExecutorService virtualThreads;
+    private StormSocket socket;
+    private List<WebSocketConnection> connections;
+
+    @Setup(Level.Trial)
+    public void startThreads() {
+        workers = Executors.newFixedThreadPool(WORKER_THREADS);
+        virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    @Setup(Level.Iteration)
+    public void connect() {
+        socket = new StormSocket(executionMode, concurrencyMode, virtualThreads);
+        connections = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            var connection = newConnection(i);
+            socket.onOpen(connection);
+            connections.add(connection);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopThreads() {
+        workers.shutdownNow();
+        virtualThreads.shutdownNow();
+    }
+
+    @Benchmark
+    public int storm() {
+        List<CompletableFuture<Void>> handled = new ArrayList<>(clients);
+        for (var connection : connections) {
+            handled.add(CompletableFuture.supplyAsync(() -> receive(connection), workers)
+                    .thenCompose(Uni::subscribeAsCompletionStage));
+        }
+        CompletableFuture.allOf(handled.toArray(CompletableFuture[]::new)).join();
+        return handled.size();
+    }
+
+    private Uni<Void> receive(WebSocketConnection connection) {
+        try {
+            return socket.onMessage("0", connection);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** A connection accepting anything sent to it. */
+    private static WebSocketConnection newConnection(int id) {
+        return (WebSocketConnection) Proxy.newProxyInstance(WebSocketConnection.class.getClassLoader(),
+                new Class<?>[]{WebSocketConnection.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> id;
+                    case "toString", "id" -> "connection-" + id;
+                    case "isOpen" -> true;
+                    case "isClosed", "isSecure" -> false;
+                    default -> (method.getReturnType() == Uni.class) ? Uni.createFrom().voidItem() : null;
+                });
+    }
+
+    /** Resynchronises clients from the stamp they send. */
+    private static class StormSocket extends QuarkusWebSocket {
+        private final BenchmarkStore store = new BenchmarkStore();
+        private final ConcurrencyMode concurrencyMode;
+
+        StormSocket(ExecutionMode executionMode, ConcurrencyMode concurrencyMode, ExecutorService virtualThreads) {
+            this.json = new ObjectMapper();
+            this.abstractStore = store;
+            this.executionMode = executionMode;
+            this.concurrencyMode = concurrencyMode;
+            this.virtualThreads = virtualThreads;
+        }
+
+        @Override
+        protected ConcurrencyMode getConcurrencyMode() {
+            return concurrencyMode;
+        }
+
+        @Override
+        protected void handleMessage(BroadcastTarget client, String message) {
+            client.sendOrLog(store.addListener(client, null, Long.parseLong(message)));
+        }
+    }
+
+    private record Snapshot(long stamp) implements Stamped {}
+
+    private static class BenchmarkStore extends InMemoryHistoryStore<Object, Snapshot, HistoryStore.AbstractUpdateSession> {
+
+        @Override
+        public Snapshot getSnapshot(Object query) {
+            return new Snapshot(getStamp());
+        }
+
+        @Override
+        protected AbstractUpdateSession newTransaction(long stamp) {
+            return new AbstractUpdateSession(stamp);
+        }
+
+        /** Without a journal, every client is resynchronised from storage. */
+        @Override
+        protected List<? extends Event> internalAddListener(BroadcastTarget client, Object query, long since) {
+            LockSupport.parkNanos(QUERY_NANOS);
+            return List.of();
+        }
+
+        @Override
+        public void removeListener(BroadcastTarget client) {
+        }
+    }
+}
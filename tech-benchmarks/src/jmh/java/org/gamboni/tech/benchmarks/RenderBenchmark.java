@@ -0,0 +1,77 @@
+package org.gamboni.tech.benchmarks;
+
+import org.gamboni.tech.web.ui.Element;
+import org.gamboni.tech.web.ui.Html;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.gamboni.tech.web.ui.Html.attribute;
+
+/** Server-side rendering of a large element tree with {@link Element#toString()}, mostly spent escaping text and
+ * attributes. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+
+    /** Number of table rows, each having three cells. */
+    @Param({"100", "10000"})
+    int rows;
+
+    /** Paragraph of a text-heavy page, where most text needs no escaping. */
+    private static final String PARAGRAPH = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod " +
+            "tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation " +
+            "ullamco laboris nisi ut aliquip ex ea commodo consequat. ";
+
+    private Element table;
+
+    @Setup
+    public void setUp() {
+        table = buildTable();
+    }
+
+    private Element buildTable() {
+        List<Element> trs = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            trs.add(new Element("tr", List.of(attribute("class", "row")),
+                    new Element("td", Html.escape("Item #" + i)),
+                    new Element("td", List.of(attribute("title", "Say \"" + i + "\"")),
+                            Html.escape(i + " < " + (i + 1) + " & more")),
+                    new Element("td", new Element("span", Html.escape("done")))));
+        }
+        return new Element("table", List.of(attribute("id", "items")), trs);
+    }
+
+    /** A table built for each response, as done by {@code render(data)} methods. */
+    @Benchmark
+    public String render() {
+        return buildTable().toString();
+    }
+
+    /** A table kept across responses, rendered once and for all as it is constant. */
+    @Benchmark
+    public String renderConstant() {
+        return table.toString();
+    }
+
+    /** A page of {@link #rows} paragraphs of text, built for each response. */
+    @Benchmark
+    public String renderText() {
+        List<Element> paragraphs = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            paragraphs.add(new Element("p", List.of(attribute("title", "Paragraph " + i)),
+                    Html.escape(PARAGRAPH + i)));
+        }
+        return new Element("article", paragraphs).toString();
+    }
+}
@@ -0,0 +1,61 @@
+package org.gamboni.tech.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.gamboni.tech.history.event.CompactEventFormat;
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.history.event.JsSerializerModule;
+import org.gamboni.tech.history.event.StampedEventList;
+import org.gamboni.tech.history.event.TextEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Jackson serialisation of a {@link StampedEventList}, as done for each broadcast, in JSON (with reflective and
+ * {@link JsSerializerModule generated} serializers) and in {@link CompactEventFormat compact} format. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    /** Number of events in the list. */
+    @Param({"1", "100"})
+    int events;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ObjectMapper generatedMapper = new ObjectMapper().registerModule(new JsSerializerModule());
+    private StampedEventList list;
+
+    @Setup
+    public void setUp() {
+        List<Event> updates = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            updates.add(new TextEvent("item", "id" + i, "Text of item \"" + i + "\""));
+        }
+        list = new StampedEventList(42, updates);
+    }
+
+    @Benchmark
+    public String serialize() throws JsonProcessingException {
+        return mapper.writeValueAsString(list);
+    }
+
+    @Benchmark
+    public String serializeGenerated() throws JsonProcessingException {
+        return generatedMapper.writeValueAsString(list);
+    }
+
+    @Benchmark
+    public String serializeCompact() throws JsonProcessingException {
+        return CompactEventFormat.DEFAULT.encode(mapper, list);
+    }
+}
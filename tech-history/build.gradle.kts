@@ -21,9 +21,11 @@ dependencies {
     annotationProcessor(lombok)
     
     implementation(libs.guava)
+    implementation("org.slf4j:slf4j-api:2.0.13")
     implementation("com.fasterxml.jackson.core:jackson-core:2.16.1")
     implementation("com.fasterxml.jackson.core:jackson-databind:2.16.1")
 
+    testAnnotationProcessor(project(":tech-web"))
     testImplementation(libs.junit.jupiter)
     testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
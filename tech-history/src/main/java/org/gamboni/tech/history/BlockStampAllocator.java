@@ -0,0 +1,100 @@
+package org.gamboni.tech.history;
+
+import com.google.common.base.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.LongSupplier;
+
+/** Hands out stamps from blocks reserved from a shared sequence, so that only one in {@code blockSize} stamps
+ * costs a round-trip to the sequence.
+ * <p>
+ *     The sequence must be configured to increment by {@code blockSize} (for instance
+ *     {@code create sequence versions increment by 50}). Each value {@code v} it returns reserves the stamps
+ *     {@code v - blockSize + 1} to {@code v} inclusive. As the sequence value is always at least as large as any stamp
+ *     handed out, stamps keep increasing across restarts, and instances sharing the same sequence never hand out
+ *     the same stamp. Stamps are however only increasing <em>within</em> an instance, as another instance may
+ *     still be using a lower block: stores needing a single order across instances must use a block size of 1.
+ * </p>
+ * <p>
+ *     With a {@code blockSize} of 1 this is equivalent to querying the sequence for each stamp.
+ * </p>
+ */
+@Slf4j
+public class BlockStampAllocator {
+
+    /** Refill counters, for monitoring.
+     *
+     * @param refills number of blocks reserved from the sequence.
+     * @param refillNanos total time spent reserving blocks.
+     * @param allocated number of stamps handed out.
+     */
+    public record Stats(long refills, long refillNanos, long allocated) {}
+
+    private final LongSupplier sequence;
+    private final int blockSize;
+
+    /** Last stamp handed out. Only meaningful if {@link #remaining} is not negative. */
+    private long last;
+    /** Number of stamps left in the current block, or -1 before the first block is reserved. */
+    private int remaining = -1;
+
+    private long refills = 0;
+    private long refillNanos = 0;
+    private long allocated = 0;
+
+    /**
+     * @param sequence returns the next value of the underlying sequence.
+     * @param blockSize how much the sequence increments by.
+     */
+    public BlockStampAllocator(LongSupplier sequence, int blockSize) {
+        Preconditions.checkArgument(blockSize > 0, "Block size must be positive");
+        this.sequence = sequence;
+        this.blockSize = blockSize;
+    }
+
+    /** Return a new stamp, greater than all stamps previously returned by this allocator. */
+    public synchronized long next() {
+        if (remaining <= 0) {
+            refill();
+        }
+        remaining--;
+        allocated++;
+        return ++last;
+    }
+
+    /** Return the last stamp handed out by this allocator. Before the first allocation, a block is reserved, and
+     * the returned value is lower than any stamp this allocator will hand out, but greater than any stamp handed
+     * out before (by this or any other instance). */
+    public synchronized long current() {
+        if (remaining < 0) {
+            refill();
+        }
+        return last;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(refills, refillNanos, allocated);
+    }
+
+    private void refill() {
+        long start = System.nanoTime();
+        long value = sequence.getAsLong();
+        if (remaining < 0 && blockSize > 1) {
+            /* First block: make sure the sequence increments by blockSize, otherwise blocks would overlap. A
+             * concurrent instance may make the difference larger, but never smaller. */
+            long second = sequence.getAsLong();
+            if (second - value < blockSize) {
+                throw new IllegalStateException("Stamp sequence increments by " + (second - value) +
+                        ", expected at least " + blockSize);
+            }
+            value = second;
+        }
+        long took = System.nanoTime() - start;
+
+        last = value - blockSize;
+        remaining = blockSize;
+        refills++;
+        refillNanos += took;
+        log.debug("Reserved stamps {} to {} in {}µs", last + 1, value, took / 1000);
+    }
+}
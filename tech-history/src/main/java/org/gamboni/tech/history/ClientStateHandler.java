@@ -1,9 +1,11 @@
 package org.gamboni.tech.history;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
+import org.gamboni.tech.history.event.CompactEventFormat;
 import org.gamboni.tech.history.event.Event;
 import org.gamboni.tech.history.event.StampedEventListValues;
 import org.gamboni.tech.web.js.JavaScript;
@@ -12,8 +14,13 @@ import org.gamboni.tech.web.js.JsType;
 import org.gamboni.tech.web.ui.Page;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -41,56 +48,208 @@ public abstract class ClientStateHandler implements JsPersistentWebSocket.Handle
             Function<T, JsFragment> handler) {}
 
     /**
-     * Latest sequence number obtained from server.
+     * Latest sequence number obtained from server. Renamed with Page.freshGlobal() when added to a page.
      */
-    private final JsGlobal stamp = new JsGlobal("stamp");
+    private JsGlobal stamp = new JsGlobal("stamp");
     public static final Symbol EVENT_SYMBOL = Symbol.create();
 
+    /** Converts compact frames back to JSON objects, or {@code null} if not using a compact format. */
+    private Fun1 decoder = null;
+
+    /** Minimum number of branches for which a lookup table is generated instead of an if-else chain. */
+    private static final int MIN_TABLE_SIZE = 4;
+
     Multimap<Set<ConditionKey>, JsFragment> evaluatedHandlers = LinkedHashMultimap.create();
     //private final List<EventHandler<?>> handlers = new ArrayList<>();
 
+    /** Global holding the lookup tables used to dispatch events, or {@code null} if this handler was not added to a
+     * page, in which case events are dispatched with if-else chains. */
+    private JsGlobal dispatchTables = null;
+    private DispatchPlan dispatchPlan = null;
+
     public <E> ClientStateHandler addHandler(BiFunction<JsExpression, MatchCallback, E> matcher,
                                              Function<E, JsFragment> handler) {
         addHandlerToMultimap(new EventHandler<>(matcher, handler), evaluatedHandlers);
+        synchronized (this) {
+            dispatchPlan = null;
+        }
         return this;
     }
 
-    private record ConditionKey(JsExpression expr) {
+    /** A condition, identified by its JavaScript code. The code is rendered once, when the key is created, as keys
+     * are hashed and compared many times while handlers are registered and dispatch tables planned.
+     *
+     * @param expr the condition.
+     * @param code {@code expr}, formatted.
+     */
+    private record ConditionKey(JsExpression expr, String code) {
+        ConditionKey(JsExpression expr) {
+            this(expr, expr.format(Scope.NO_DECLARATION));
+        }
+
         public int hashCode() {
-            return format().hashCode();
+            return code.hashCode();
         }
 
         public boolean equals(Object obj) {
             return (obj instanceof ConditionKey that) &&
-                    this.format().equals(that.format());
+                    this.code.equals(that.code);
         }
+    }
+
+    private JsStatement applyUpdate(JsExpression event) {
+        return EVENT_SYMBOL.assignIn(event, JavaScript.dynamicStatement(() -> getDispatchPlan().root().code()));
+    }
 
-        private String format() {
-            return expr.format(Scope.NO_DECLARATION);
+    /** Lazily compute the dispatch plan, once all handlers have been added. */
+    private synchronized DispatchPlan getDispatchPlan() {
+        if (dispatchPlan == null) {
+            List<Branch> branches = new ArrayList<>();
+            evaluatedHandlers.asMap().forEach((conditions, handlers) ->
+                    branches.add(new Branch(List.copyOf(conditions), List.copyOf(handlers))));
+            List<Table> tables = new ArrayList<>();
+            dispatchPlan = new DispatchPlan(plan(branches, tables), tables);
         }
+        return dispatchPlan;
     }
 
-    private JsStatement applyUpdate(JsExpression event) {
-        return EVENT_SYMBOL.assignIn(event, JavaScript.dynamicStatement(() ->
-                evaluatedHandlers.asMap()
-                .entrySet()
+    /** Handlers triggered when all the given conditions are true. Not a record because distinct branches may have
+     * equal contents once some of their conditions have been moved to lookup tables. */
+    @RequiredArgsConstructor
+    private static final class Branch {
+        private final List<ConditionKey> conditions;
+        private final List<JsFragment> handlers;
+
+        List<ConditionKey> conditions() {
+            return conditions;
+        }
+
+        List<JsFragment> handlers() {
+            return handlers;
+        }
+
+        Branch without(ConditionKey condition) {
+            return new Branch(conditions.stream().filter(c -> !c.equals(condition)).toList(), handlers);
+        }
+    }
+
+    private interface DispatchNode {
+        JsStatement code();
+    }
+
+    /** Test each branch in turn, and run the first one whose conditions are all true. */
+    private record Chain(List<Branch> branches) implements DispatchNode {
+        @Override
+        public JsStatement code() {
+            IfLike chain = EMPTY_IF_CHAIN;
+            for (var branch : branches) {
+                // all handlers triggered by this combination of conditions
+                JsStatement body = branch.handlers()
+                        .stream()
+                        .collect(toSeq());
+                if (branch.conditions().isEmpty()) {
+                    // always taken: any further branch is unreachable
+                    return chain._else(body);
+                }
+                // all conditions that must be true to enter this block
+                chain = chain._elseIf(branch.conditions()
+                                .stream()
+                                .map(ConditionKey::expr)
+                                .reduce(JsExpression::and)
+                                .orElseThrow(),
+                        body);
+            }
+            return chain;
+        }
+    }
+
+    /** Look up the value of {@code selector} in a {@code Map} of functions (stored at index {@code index} of the
+     * {@link #dispatchTables} global), and call the function found, or run {@code fallback} if none is. */
+    private record Table(JsGlobal tables, int index, JsExpression selector,
+                         Map<JsExpression, DispatchNode> cases, DispatchNode fallback) implements DispatchNode {
+        @Override
+        public JsStatement code() {
+            return let(tables.arrayGet(literal(index)).invoke("get", selector),
+                    function -> {
+                        IfBlock found = _if(function, invoke(function, EVENT_SYMBOL));
+                        return (fallback instanceof Chain chain && chain.branches().isEmpty()) ?
+                                found :
+                                found._else(fallback.code());
+                    });
+        }
+
+        JsExpression declare() {
+            return newMap(cases.entrySet()
+                    .stream()
+                    .map(entry -> array(entry.getKey(),
+                            lambda("event", e -> EVENT_SYMBOL.assignIn(e, entry.getValue().code()))))
+                    .collect(JavaScript.toArray()));
+        }
+    }
+
+    private record DispatchPlan(DispatchNode root, List<Table> tables) {}
+
+    /** Turn the given branches into nested lookup tables where possible. If the conditions of many branches
+     * compare the same part of the event (such as its type, key or id) with distinct literals, the event is
+     * dispatched with a single {@code Map} lookup instead of testing each branch in turn.
+     * Branches not testing that part of the event are copied into each case, preserving their order,
+     * so that the first matching branch still wins.
+     * Only direct properties of the event are used as selectors: a selector is evaluated before the conditions
+     * that came before it in the chain, such as a type check guarding {@code event.data.key}. */
+    private DispatchNode plan(List<Branch> branches, List<Table> tables) {
+        if (dispatchTables == null || branches.size() < MIN_TABLE_SIZE) {
+            return new Chain(branches);
+        }
+        // for each selector (the non-literal side of an equality): the branches testing it, with the literal
+        Map<ConditionKey, Map<Branch, ConditionKey>> bySelector = new LinkedHashMap<>();
+        for (var branch : branches) {
+            for (var condition : branch.conditions()) {
+                JavaScript.asLiteralEquality(condition.expr())
+                        // (the selector is evaluated before any other condition, so it must not depend on them)
+                        .filter(eq -> JavaScript.isPropertyOf(eq.operand(), EVENT_SYMBOL))
+                        .ifPresent(eq -> bySelector.computeIfAbsent(new ConditionKey(eq.operand()),
+                                        __ -> new LinkedHashMap<>())
+                                .putIfAbsent(branch, condition));
+            }
+        }
+        var best = bySelector.entrySet()
                 .stream()
-                .reduce(EMPTY_IF_CHAIN,
-                        (chain, entry) ->
-                                chain._elseIf(
-                                        // entry.key: all conditions that must be true to enter this block
-                                        entry.getKey()
-                                                .stream()
-                                                .map(ConditionKey::expr)
-                                                .reduce(JsExpression::and)
-                                                .orElse(literal(true)),
-                                        // entry.value: all handlers triggered by this combination of conditions
-                                        entry.getValue()
-                                                .stream()
-                                                .collect(toSeq())),
-                        (__, ___) -> {
-                            throw new IllegalStateException("Unnecessary in sequential streams");
-                        })));
+                .filter(e -> distinctLiterals(e.getValue().values()).size() > 1)
+                .max(Comparator.comparingInt(e -> e.getValue().size()));
+        if (best.isEmpty()) {
+            return new Chain(branches);
+        }
+        Map<Branch, ConditionKey> covered = best.get().getValue();
+        List<Branch> residual = branches.stream().filter(b -> !covered.containsKey(b)).toList();
+        Map<ConditionKey, JsExpression> literals = distinctLiterals(covered.values());
+        if (residual.size() * literals.size() > covered.size()) {
+            // copying the remaining branches into each case would make the code larger than the original chain
+            return new Chain(branches);
+        }
+
+        Map<JsExpression, DispatchNode> cases = new LinkedHashMap<>();
+        literals.forEach((literal, literalExpr) -> cases.put(literalExpr, plan(branches.stream()
+                        .filter(b -> !covered.containsKey(b) || literalOf(covered.get(b)).equals(literal))
+                        .map(b -> covered.containsKey(b) ? b.without(covered.get(b)) : b)
+                        .toList(),
+                tables)));
+        var table = new Table(dispatchTables, tables.size(), best.get().getKey().expr(), cases, plan(residual, tables));
+        tables.add(table);
+        return table;
+    }
+
+    /** The literals of the given equality conditions, by format. */
+    private static Map<ConditionKey, JsExpression> distinctLiterals(Collection<ConditionKey> equalities) {
+        Map<ConditionKey, JsExpression> result = new LinkedHashMap<>();
+        for (var equality : equalities) {
+            JsExpression literal = JavaScript.asLiteralEquality(equality.expr()).orElseThrow().literal();
+            result.putIfAbsent(new ConditionKey(literal), literal);
+        }
+        return result;
+    }
+
+    private static ConditionKey literalOf(ConditionKey equality) {
+        return new ConditionKey(JavaScript.asLiteralEquality(equality.expr()).orElseThrow().literal());
     }
 
     private <E> void addHandlerToMultimap(EventHandler<E> handler, Multimap<Set<ConditionKey>, JsFragment> evaluatedHandlers) {
@@ -166,12 +325,29 @@ public abstract class ClientStateHandler implements JsPersistentWebSocket.Handle
             matchCallback.conditions.clear();
 
             var wrappedEvent = handler.matcher.apply(EVENT_SYMBOL, matchCallback);
-            evaluatedHandlers.put(Set.copyOf(matchCallback.conditions), handler.handler.apply(wrappedEvent));
+            evaluatedHandlers.put(ImmutableSet.copyOf(matchCallback.conditions), handler.handler.apply(wrappedEvent));
         }
     }
 
     protected abstract JsExpression helloValue(JsExpression stamp);
 
+    /** The compact format to request from the back end, which must also support it. The default implementation
+     * returns an empty {@code Optional}, to always receive JSON. */
+    protected Optional<CompactEventFormat> getCompactFormat() {
+        return Optional.empty();
+    }
+
+    @Override
+    public JsExpression decode(JsExpression message) {
+        return (decoder == null) ? message : decoder.invoke(message);
+    }
+
+    @Override
+    public Map<String, String> getUrlParameters() {
+        return getCompactFormat()
+                .map(format -> Map.of(CompactEventFormat.PARAMETER, format.getId()))
+                .orElse(Map.of());
+    }
 
     @Override
     public JsStatement handleEvent(JsExpression event) {
@@ -192,7 +368,16 @@ public abstract class ClientStateHandler implements JsPersistentWebSocket.Handle
 
     @Override
     public ClientStateHandler addTo(Page<?> page) {
+        stamp = new JsGlobal(page.freshGlobal("stamp"));
         page.addToScript(stamp.declare(0)); // initialised by init()
+        decoder = getCompactFormat()
+                .map(format -> format.addDecoderTo(page))
+                .orElse(null);
+        dispatchTables = new JsGlobal(page.freshGlobal("dispatch"));
+        page.addToScript(() -> dispatchTables.declare(getDispatchPlan().tables()
+                .stream()
+                .map(Table::declare)
+                .collect(JavaScript.toArray())).render());
         return this;
     }
 
@@ -0,0 +1,248 @@
+package org.gamboni.tech.history;
+
+import com.google.common.base.Preconditions;
+import org.gamboni.tech.history.event.Event;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/** Bounded record of the events produced by recent {@link HistoryStore#update} calls, indexed by stamp.
+ * <p>
+ *     This allows {@link HistoryStore#addListener} to bring a reconnecting client up to date by replaying what it
+ *     missed, instead of having the application rebuild its state from scratch. Only events published with
+ *     {@link HistoryStore#publish} are recorded, because the journal must know which <em>future</em> clients
+ *     each event is relevant to. A transaction producing any other notification (by writing into
+ *     {@link HistoryStore.AbstractUpdateSession#notifications}, for instance events computed from the query of each
+ *     current client) leaves a gap in the journal, and clients older than that gap fall back to
+ *     {@link HistoryStore#internalAddListener}.
+ * </p>
+ *
+ * @param <Q> query object
+ */
+public class EventJournal<Q> {
+
+    /** How much history to keep. A journal is bounded by all the given limits at the same time.
+     *
+     * @param maxBatches maximum number of transactions to keep. Zero disables the journal.
+     * @param maxBytes maximum (approximate) size of retained events. See {@link #weigh(Event)}.
+     * @param maxAge maximum age of retained transactions, or {@code null} to keep them forever.
+     * @param diffCapacity maximum number of element states to keep for clients older than the journal. Zero
+     *                     disables deltas. See {@link SnapshotDiff}.
+     */
+    public record Retention(int maxBatches, long maxBytes, Duration maxAge, int diffCapacity) {
+        public static final Retention DISABLED = new Retention(0, 0, null);
+
+        public Retention(int maxBatches, long maxBytes, Duration maxAge) {
+            this(maxBatches, maxBytes, maxAge, 0);
+        }
+
+        public static Retention ofBatches(int maxBatches) {
+            Preconditions.checkArgument(maxBatches > 0, "Use Retention.DISABLED to disable the journal");
+            return new Retention(maxBatches, Long.MAX_VALUE, null);
+        }
+
+        public Retention withMaxBytes(long maxBytes) {
+            return new Retention(maxBatches, maxBytes, maxAge, diffCapacity);
+        }
+
+        public Retention withMaxAge(Duration maxAge) {
+            return new Retention(maxBatches, maxBytes, maxAge, diffCapacity);
+        }
+
+        public Retention withDiffCapacity(int diffCapacity) {
+            Preconditions.checkArgument(diffCapacity >= 0, "Negative capacity");
+            return new Retention(maxBatches, maxBytes, maxAge, diffCapacity);
+        }
+
+        public boolean isEnabled() {
+            return maxBatches > 0;
+        }
+    }
+
+    /** An event, and the queries it is relevant to. */
+    public record Notification<Q>(Event event, Predicate<? super Q> audience) {
+
+        /** Return the event to send to a client with the given query, if any. */
+        public Optional<Event> resolve(Q query) {
+            return audience.test(query) ? Optional.of(event) : Optional.empty();
+        }
+    }
+
+    private record Batch<Q>(long stamp, long recordedAt, List<Notification<Q>> notifications, long bytes) {}
+
+    /** Marker value for {@link #floor} meaning we don't know yet where history starts. */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    private final Retention retention;
+    private final Clock clock;
+
+    /** Ring buffer of retained batches, ordered by stamp, starting at {@link #head}. Grows up to
+     * {@code retention.maxBatches()}. */
+    private Batch<Q>[] ring;
+    private int head = 0;
+    private int size = 0;
+    private long bytes = 0;
+
+    /** All transactions with a stamp strictly greater than this value are in {@link #ring}. */
+    private long floor = UNKNOWN;
+
+    public EventJournal(Retention retention) {
+        this(retention, Clock.systemUTC());
+    }
+
+    EventJournal(Retention retention, Clock clock) {
+        this.retention = retention;
+        this.clock = clock;
+        this.ring = newArray(Math.min(retention.maxBatches(), 16));
+    }
+
+    public boolean isEnabled() {
+        return retention.isEnabled();
+    }
+
+    /** Return {@code true} if the journal doesn't know yet from which stamp it holds complete history. In that case
+     * the caller should call {@link #initialise(long)} with the current stamp before recording anything. */
+    public synchronized boolean needsInitialisation() {
+        return retention.isEnabled() && floor == UNKNOWN;
+    }
+
+    /** Declare that every transaction after {@code stamp} is going to be recorded in this journal. */
+    public synchronized void initialise(long stamp) {
+        if (floor == UNKNOWN) {
+            floor = stamp;
+        }
+    }
+
+    /** Record the outcome of a transaction.
+     *
+     * @param stamp the stamp of the transaction.
+     * @param notifications the events it published.
+     * @param complete {@code false} if the transaction sent notifications that could not be recorded. The
+     *                 journal is then emptied, as it can no longer replay anything older than {@code stamp}.
+     */
+    public synchronized void record(long stamp, List<Notification<Q>> notifications, boolean complete) {
+        if (!retention.isEnabled()) {
+            return;
+        }
+        if (!complete || (size > 0 && get(size - 1).stamp() >= stamp)) {
+            // (second condition should not happen as long as transactions are serialised; be safe if it does)
+            clear(Math.max(stamp, lastStamp()));
+            return;
+        }
+        if (floor == UNKNOWN) {
+            floor = stamp - 1;
+        }
+        long batchBytes = 0;
+        for (var notification : notifications) {
+            batchBytes += weigh(notification.event());
+        }
+        if (size == ring.length) {
+            if (size == retention.maxBatches()) {
+                evictOldest();
+            } else {
+                grow();
+            }
+        }
+        ring[(head + size) % ring.length] = new Batch<>(stamp, clock.millis(), List.copyOf(notifications), batchBytes);
+        size++;
+        bytes += batchBytes;
+        while (size > 0 && bytes > retention.maxBytes()) {
+            evictOldest();
+        }
+    }
+
+    /** Return all events relevant to {@code query} published after {@code since}, or an empty {@code Optional} if
+     * the journal does not go back that far.
+     */
+    public synchronized Optional<List<Event>> replay(Q query, long since) {
+        if (!retention.isEnabled() || floor == UNKNOWN) {
+            return Optional.empty();
+        }
+        evictExpired();
+        if (since < floor) {
+            return Optional.empty();
+        }
+
+        List<Event> result = new ArrayList<>();
+        for (int i = firstAfter(since); i < size; i++) {
+            for (var notification : get(i).notifications()) {
+                notification.resolve(query).ifPresent(result::add);
+            }
+        }
+        return Optional.of(result);
+    }
+
+    /** Approximate size of an event. Records render all their components in {@code toString()}, so this is in
+     * the same order of magnitude as their serialised form. */
+    protected long weigh(Event event) {
+        return event.toString().length();
+    }
+
+    /** Index (relative to {@link #head}) of the first batch with a stamp greater than {@code since}. */
+    private int firstAfter(long since) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid).stamp() <= since) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void evictExpired() {
+        if (retention.maxAge() == null) {
+            return;
+        }
+        long limit = clock.millis() - retention.maxAge().toMillis();
+        while (size > 0 && get(0).recordedAt() < limit) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        Batch<Q> oldest = get(0);
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        size--;
+        bytes -= oldest.bytes();
+        floor = oldest.stamp();
+    }
+
+    private void clear(long newFloor) {
+        ring = newArray(ring.length);
+        head = 0;
+        size = 0;
+        bytes = 0;
+        floor = newFloor;
+    }
+
+    private void grow() {
+        Batch<Q>[] bigger = newArray(Math.min(ring.length * 2, retention.maxBatches()));
+        for (int i = 0; i < size; i++) {
+            bigger[i] = get(i);
+        }
+        ring = bigger;
+        head = 0;
+    }
+
+    private long lastStamp() {
+        return (size == 0) ? floor : get(size - 1).stamp();
+    }
+
+    private Batch<Q> get(int index) {
+        return ring[(head + index) % ring.length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <Q> Batch<Q>[] newArray(int length) {
+        return (Batch<Q>[]) new Batch<?>[length];
+    }
+}
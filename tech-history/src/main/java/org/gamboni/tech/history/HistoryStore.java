@@ -1,18 +1,40 @@
 package org.gamboni.tech.history;
 
+import com.google.common.collect.ForwardingMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Striped;
 import lombok.RequiredArgsConstructor;
 import org.gamboni.tech.history.event.Event;
 import org.gamboni.tech.history.event.StampedEventList;
 import org.gamboni.tech.web.ws.BroadcastTarget;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
+ * <p>Transactions are normally serialised: {@link #update(Consumer)} holds a lock on the whole store. Applications
+ * whose data can be split into independent partitions (e.g. one per list, or per entity) may instead call
+ * {@link #update(Object, Consumer)}, in which case transactions on different partitions run concurrently.
+ * Stamps are still published in increasing order: a transaction completing before another one with a lower stamp
+ * waits for it before returning. It does so after committing and releasing its partition, so that only publication
+ * is ordered: the underlying storage may commit concurrent transactions in any order, which is why
+ * {@link #addListener} waits for all running transactions to be published.</p>
+ * <p>Events are only recorded and published once the transaction has committed (see {@link #inTransaction}), and
+ * {@link #addListener} excludes transactions while it registers the client, so that the client receives every change
+ * made after the stamp it is given, and nothing from transactions that rolled back.</p>
  *
  * @param <Q> query object
  * @param <S> response ("snapshot") object
@@ -23,12 +45,51 @@ public abstract class HistoryStore<
         S extends Stamped,
         T extends HistoryStore.AbstractUpdateSession> {
 
+    /** Number of locks partition keys are hashed to. */
+    private static final int PARTITION_STRIPES = 64;
+
+    private final EventJournal.Retention journalRetention;
+    private final EventJournal<Q> journal;
+    private final SnapshotDiff<Q> diff;
+
+    /** Held in write mode by {@link #update(Consumer)} and {@link #addListener}, and in read mode by
+     * {@link #update(Object, Consumer)}. */
+    private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+    private final Striped<Lock> partitionLocks = Striped.lock(PARTITION_STRIPES);
+    private final StampSequencer sequencer = new StampSequencer();
+    private final List<PublishListener> publishListeners = new CopyOnWriteArrayList<>();
+
+    protected HistoryStore() {
+        this(EventJournal.Retention.DISABLED);
+    }
+
+    /**
+     * @param journalRetention how much history to keep for clients reconnecting with an old stamp.
+     *                         See {@link EventJournal}.
+     */
+    protected HistoryStore(EventJournal.Retention journalRetention) {
+        this.journalRetention = journalRetention;
+        this.journal = new EventJournal<>(journalRetention);
+        this.diff = new SnapshotDiff<>(journalRetention.diffCapacity());
+    }
+
     /** Return the current stamp value. */
     protected abstract long getStamp();
     protected abstract long incrementStamp();
 
     public abstract S getSnapshot(Q query);
 
+    /** Approximate cost of resynchronising a client with the given query through {@link #internalAddListener}, in
+     * the unit of {@link EventJournal#weigh(Event)}. {@link #addListener} prefers that to a non-empty
+     * {@link SnapshotDiff delta} weighing more. This is called on every such reconnection, so it must be cheap (a
+     * row count, a cached size...): never build the snapshot to measure it. The default implementation does not know
+     * the size of snapshots, and returns the {@link EventJournal.Retention#maxBytes() maxBytes} of the journal, so
+     * that a delta is used whenever the journal would have replayed that much.
+     */
+    protected long snapshotWeight(Q query) {
+        return journalRetention.maxBytes();
+    }
+
 
     public class PerClientUpdates {
         private final long stamp;
@@ -50,6 +111,10 @@ public abstract class HistoryStore<
             }
         }
 
+        public long getStamp() {
+            return stamp;
+        }
+
         public boolean hasEvents() {
             return !updates.isEmpty();
         }
@@ -58,20 +123,240 @@ public abstract class HistoryStore<
     @RequiredArgsConstructor
     public static class AbstractUpdateSession {
         protected final long stamp;
-        protected final Multimap<BroadcastTarget, Event> notifications = HashMultimap.create();
+        /** Events to send to each client. Notifications written here directly, rather than through
+         * {@link HistoryStore#publish}, cannot be recorded in the {@link EventJournal}. */
+        protected final Multimap<BroadcastTarget, Event> notifications = new Notifications();
+        /** Contents of {@link #notifications}. */
+        final Multimap<BroadcastTarget, Event> sent = HashMultimap.create();
+        /** Events sent through {@link #publish}, typed {@code Notification<Q>}. */
+        final List<EventJournal.Notification<?>> published = new ArrayList<>();
+        /** Whether some notifications did not go through {@link #publish}. */
+        boolean unpublished = false;
+
+        /** Notices notifications written without going through {@link #publish}. */
+        private class Notifications extends ForwardingMultimap<BroadcastTarget, Event> {
+            @Override
+            protected Multimap<BroadcastTarget, Event> delegate() {
+                return sent;
+            }
+
+            @Override
+            public boolean put(BroadcastTarget key, Event value) {
+                unpublished = true;
+                return super.put(key, value);
+            }
+
+            @Override
+            public boolean putAll(BroadcastTarget key, Iterable<? extends Event> values) {
+                unpublished = true;
+                return super.putAll(key, values);
+            }
+
+            @Override
+            public boolean putAll(Multimap<? extends BroadcastTarget, ? extends Event> multimap) {
+                unpublished = true;
+                return super.putAll(multimap);
+            }
+
+            @Override
+            public Collection<Event> replaceValues(BroadcastTarget key, Iterable<? extends Event> values) {
+                unpublished = true;
+                return super.replaceValues(key, values);
+            }
+        }
     }
 
     protected abstract T newTransaction(long stamp);
 
-    public synchronized PerClientUpdates update(Consumer<T> work) {
-        long stamp = incrementStamp();
-        T session = newTransaction(stamp);
-        work.accept(session);
-        return new PerClientUpdates(stamp, session.notifications);
+    /** Run a transaction excluding all other transactions. */
+    public PerClientUpdates update(Consumer<T> work) {
+        Lock lock = storeLock.writeLock();
+        lock.lock();
+        try {
+            // (the write lock is reentrant)
+            return runTransaction(work, lock);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Run a transaction concurrently with transactions on other partitions. The given work must only touch data
+     * belonging to the given partition, otherwise concurrent transactions may conflict or (if the underlying
+     * storage locks data until commit) deadlock.
+     *
+     * @param partition the partition key. Any object with consistent {@code equals}/{@code hashCode}, typically
+     *                  the id of the entity or list being modified.
+     * @param work the transaction to run.
+     */
+    public PerClientUpdates update(Object partition, Consumer<T> work) {
+        Lock shared = storeLock.readLock();
+        shared.lock();
+        try {
+            return runTransaction(work, partitionLocks.get(partition));
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    /** Run and commit the given work holding {@code workLock}, then publish its results in stamp order. */
+    private PerClientUpdates runTransaction(Consumer<T> work, Lock workLock) {
+        initialiseHistory();
+        // set once the stamp is allocated, which subclasses may need to do in the storage transaction
+        StampSequencer.Ticket[] ticket = {null};
+        try {
+            T session;
+            workLock.lock();
+            try {
+                session = inTransaction(() -> {
+                    ticket[0] = sequencer.begin(this::incrementStamp);
+                    T newSession = newTransaction(ticket[0].stamp());
+                    work.accept(newSession);
+                    return newSession;
+                });
+            } finally {
+                // committed: later transactions on the same partition may start while this one awaits its turn
+                workLock.unlock();
+            }
+            long stamp = ticket[0].stamp();
+            sequencer.awaitTurn(ticket[0]);
+            if (journal.isEnabled() || diff.isEnabled()) {
+                var published = publishedIn(session);
+                journal.record(stamp, published, !session.unpublished);
+                diff.record(stamp, published, !session.unpublished);
+            }
+            if (!publishListeners.isEmpty()) {
+                notifyPublishListeners(session);
+            }
+            return new PerClientUpdates(stamp, session.sent);
+        } finally {
+            if (ticket[0] != null) {
+                sequencer.end(ticket[0]);
+            }
+        }
+    }
+
+    /** Run the given code in a storage transaction, committed before this method returns, so that transactions rolling
+     * back are neither recorded nor published. The default implementation just runs it: subclasses backed by
+     * transactional storage override this to demarcate the transaction.
+     */
+    protected <R> R inTransaction(Supplier<R> body) {
+        return body.get();
+    }
+
+    /** Receives the events of each transaction, once it is committed. This is meant for server-side caches of data
+     * derived from events, such as a {@link org.gamboni.tech.history.ui.RenderCache}. */
+    public interface PublishListener extends Consumer<Event> {
+        /** Called after {@link #accept} if the transaction may have produced other events: those written into
+         * {@link AbstractUpdateSession#notifications} directly (such as events computed from the query of each
+         * client) are only known for the clients listening at the time. */
+        void acceptUnknown();
+    }
+
+    /** Call the given listener with the events of each transaction, once it is committed. */
+    public void addPublishListener(PublishListener listener) {
+        publishListeners.add(listener);
+    }
+
+    /** Call the given listener with the events of each transaction, once it is committed. Unlike a
+     * {@link PublishListener}, it is not told when there may be other events. */
+    public void addPublishListener(Consumer<? super Event> listener) {
+        addPublishListener(new PublishListener() {
+            @Override
+            public void accept(Event event) {
+                listener.accept(event);
+            }
+
+            @Override
+            public void acceptUnknown() {
+            }
+        });
+    }
+
+    private void notifyPublishListeners(T session) {
+        Set<Event> events = new LinkedHashSet<>();
+        for (var notification : session.published) {
+            events.add(notification.event());
+        }
+        events.addAll(session.sent.values());
+        for (var listener : publishListeners) {
+            events.forEach(listener);
+            if (session.unpublished) {
+                listener.acceptUnknown();
+            }
+        }
+    }
+
+    /** Send an event to all current listeners whose query is matched by {@code audience}, and record it in the
+     * journal so that it can be replayed to clients connecting later with an older stamp.
+     *
+     * @param session the current transaction.
+     * @param listeners the currently registered clients, and their queries.
+     * @param event the event to send.
+     * @param audience the queries this event is relevant to.
+     */
+    protected void publish(T session, Map<BroadcastTarget, ? extends Q> listeners, Event event, Predicate<? super Q> audience) {
+        listeners.forEach((target, query) -> {
+            if (audience.test(query)) {
+                session.sent.put(target, event);
+            }
+        });
+        session.published.add(new EventJournal.Notification<Q>(event, audience));
     }
 
+    @SuppressWarnings("unchecked") // only publish() writes into the list, with the right type
+    private List<EventJournal.Notification<Q>> publishedIn(T session) {
+        return (List<EventJournal.Notification<Q>>) (List<?>) session.published;
+    }
+
+    /** Register a new client, and return everything it missed since the given stamp. If the journal reaches back
+     * to {@code since}, missed events are replayed from it and {@link #internalAddListener} is only asked for changes
+     * after the current stamp. Failing that, the same is done with a {@link SnapshotDiff delta}, unless it weighs
+     * more than {@link #snapshotWeight}. Otherwise {@link #internalAddListener} receives the client's stamp and is
+     * expected to resynchronise the client.
+     * <p>
+     *     No transaction runs while the client is registered, the stamp read and missed events collected, so that
+     *     they are consistent. {@link #internalAddListener} and {@link #snapshotWeight} then run without excluding
+     *     transactions: the client already receives the notifications of those committing meanwhile, so changes after
+     *     the returned stamp may reach it twice, but none are lost.
+     * </p>
+     */
     public StampedEventList addListener(BroadcastTarget client, Q query, long since) {
-        return new StampedEventList(getStamp(), internalAddListener(client, query, since));
+        initialiseHistory();
+        final long stamp;
+        final Optional<List<Event>> replayed;
+        final Optional<List<Event>> delta;
+        Lock lock = storeLock.writeLock();
+        lock.lock();
+        try {
+            registerListener(client, query);
+            stamp = getStamp();
+            replayed = journal.replay(query, since);
+            delta = replayed.isPresent() ? Optional.empty() : diff.delta(query, since, Long.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+        return replayed
+                .or(() -> delta.filter(events ->
+                        events.isEmpty() || SnapshotDiff.weigh(events) <= snapshotWeight(query)))
+                .map(missed -> {
+                    List<Event> events = new ArrayList<>(missed);
+                    events.addAll(internalAddListener(client, query, stamp));
+                    return new StampedEventList(stamp, events);
+                })
+                .orElseGet(() -> new StampedEventList(stamp, internalAddListener(client, query, since)));
+    }
+
+    /** Called by {@link #addListener} before reading the current stamp, so that the client receives the
+     * notifications of all later transactions. The default implementation does nothing. */
+    protected void registerListener(BroadcastTarget client, Q query) {
+    }
+
+    private void initialiseHistory() {
+        if (journal.needsInitialisation() || diff.needsInitialisation()) {
+            long stamp = getStamp();
+            journal.initialise(stamp);
+            diff.initialise(stamp);
+        }
     }
 
     protected abstract List<? extends Event> internalAddListener(BroadcastTarget client, Q query, long since);
@@ -5,6 +5,12 @@ public abstract class InMemoryHistoryStore<Q,
         T extends HistoryStore.AbstractUpdateSession>
         extends HistoryStore<Q, S, T> {
 
+    protected InMemoryHistoryStore() {
+    }
+
+    protected InMemoryHistoryStore(EventJournal.Retention journalRetention) {
+        super(journalRetention);
+    }
 
     /**
      * Ever-increasing version/generation/stamp number. Every change in play state is associated with a new higher stamp value.
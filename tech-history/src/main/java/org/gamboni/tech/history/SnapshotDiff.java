@@ -0,0 +1,234 @@
+package org.gamboni.tech.history;
+
+import org.gamboni.tech.history.event.ElementRemovedEvent;
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.history.event.NewStateEvent;
+import org.gamboni.tech.history.event.TextEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/** Latest state of each element displayed by clients, tagged with the stamp at which it last changed. This lets
+ * {@link HistoryStore#addListener} bring a client too old for the {@link EventJournal} up to date with a delta
+ * instead of a full resynchronisation.
+ * <p>
+ *     Where the journal keeps every event, this only keeps the last {@link NewStateEvent} and {@link TextEvent} of
+ *     each element, and the last {@link ElementRemovedEvent} (which cancels earlier events) of each removed element.
+ *     The delta for a client at stamp {@code since} is made of the entries more recent than {@code since}, so that
+ *     its size depends on how many elements changed, and not on how many times they did. Other events cannot be
+ *     compacted, and are kept as they are.
+ * </p><p>
+ *     An event replaces earlier ones of the same type for the same element, whatever their audience. Audiences are
+ *     only evaluated when a delta is built: the audiences of replaced events are kept, without the events, so that a
+ *     client which was in the audience of a replaced event but not in that of its replacement (and thus still needs
+ *     the replaced event) gets a full resynchronisation instead. Like the journal, this only knows about published
+ *     events, and a transaction producing any other notification resets it.
+ * </p>
+ *
+ * @param <Q> query object
+ */
+public class SnapshotDiff<Q> {
+
+    private record Element(String key, String id) {}
+
+    /** What remains of an event replaced by a later one. */
+    private record Replaced<Q>(long stamp, Predicate<? super Q> audience) {}
+
+    /** Maximum number of {@link Replaced} audiences kept per entry. Older ones are merged into one matching every
+     * query, which resynchronises any client missing the current event. */
+    private static final int MAX_REPLACED = 8;
+
+    /** Not a record, as the {@link #entries} set relies on identity. */
+    private static final class Entry<Q> {
+        final long stamp;
+        /** {@code null} for events that cannot be compacted. */
+        final Element element;
+        final EventJournal.Notification<Q> notification;
+        /** Audiences of the events this one replaced, oldest first. */
+        final List<Replaced<Q>> replaced = new ArrayList<>();
+
+        Entry(long stamp, Element element, EventJournal.Notification<Q> notification) {
+            this.stamp = stamp;
+            this.element = element;
+            this.notification = notification;
+        }
+
+        void replace(Entry<Q> old) {
+            replaced.addAll(old.replaced);
+            if (old.notification.audience() != notification.audience()) {
+                // (an identical audience is covered by this entry's)
+                replaced.add(new Replaced<>(old.stamp, old.notification.audience()));
+            }
+            while (replaced.size() > MAX_REPLACED) {
+                replaced.remove(0);
+                replaced.set(0, new Replaced<>(replaced.get(0).stamp(), __ -> true));
+            }
+        }
+
+        /** Whether a client with the given query, up to date at stamp {@code since}, was in the audience of an event
+         * this one replaced, that it missed. */
+        boolean missedReplaced(Q query, long since) {
+            for (var old : replaced) {
+                if (old.stamp() > since && old.audience().test(query)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Marker value for {@link #floor} meaning we don't know yet where history starts. */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    private final int capacity;
+
+    /** All entries, in stamp order. */
+    private final LinkedHashSet<Entry<Q>> entries = new LinkedHashSet<>();
+    private final Map<Element, List<Entry<Q>>> byElement = new HashMap<>();
+
+    /** All changes made by transactions with a stamp strictly greater than this value are in {@link #entries}. */
+    private long floor = UNKNOWN;
+    private long lastStamp = UNKNOWN;
+
+    /**
+     * @param capacity maximum number of entries to keep. Zero disables deltas.
+     */
+    public SnapshotDiff(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /** See {@link EventJournal#needsInitialisation()}. */
+    public synchronized boolean needsInitialisation() {
+        return isEnabled() && floor == UNKNOWN;
+    }
+
+    /** Declare that every transaction after {@code stamp} is going to be recorded. */
+    public synchronized void initialise(long stamp) {
+        if (floor == UNKNOWN) {
+            floor = stamp;
+            lastStamp = stamp;
+        }
+    }
+
+    /** Record the outcome of a transaction. See {@link EventJournal#record(long, List, boolean)}. */
+    public synchronized void record(long stamp, List<EventJournal.Notification<Q>> notifications, boolean complete) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!complete || (lastStamp != UNKNOWN && lastStamp >= stamp)) {
+            clear(Math.max(stamp, lastStamp));
+            return;
+        }
+        if (floor == UNKNOWN) {
+            floor = stamp - 1;
+        }
+        lastStamp = stamp;
+        for (var notification : notifications) {
+            add(stamp, notification);
+        }
+        var oldest = entries.iterator();
+        while (entries.size() > capacity) {
+            Entry<Q> evicted = oldest.next();
+            oldest.remove();
+            if (evicted.element != null) {
+                unindex(evicted);
+            }
+            floor = Math.max(floor, evicted.stamp);
+        }
+    }
+
+    /** Return the events needed to bring a client with the given query from stamp {@code since} to the latest
+     * recorded state, or an empty {@code Optional} if changes that old are not known, or if the delta would weigh
+     * more than {@code maxWeight} (in which case a full resynchronisation is cheaper).
+     */
+    public synchronized Optional<List<Event>> delta(Q query, long since, long maxWeight) {
+        if (!isEnabled() || floor == UNKNOWN || since < floor) {
+            return Optional.empty();
+        }
+        List<Event> result = new ArrayList<>();
+        long weight = 0;
+        for (Entry<Q> entry : entries) {
+            if (entry.stamp <= since) {
+                continue;
+            }
+            Optional<? extends Event> event = entry.notification.resolve(query);
+            if (event.isPresent()) {
+                weight += weigh(event.get());
+                result.add(event.get());
+            } else if (entry.missedReplaced(query, since)) {
+                return Optional.empty();
+            }
+        }
+        if (weight > maxWeight) {
+            return Optional.empty();
+        }
+        return Optional.of(result);
+    }
+
+    private void add(long stamp, EventJournal.Notification<Q> notification) {
+        Event event = notification.event();
+        Element element = elementOf(event);
+        var entry = new Entry<Q>(stamp, element, notification);
+        if (element != null) {
+            var previous = byElement.computeIfAbsent(element, __ -> new ArrayList<>());
+            boolean removal = event instanceof ElementRemovedEvent;
+            for (Iterator<Entry<Q>> i = previous.iterator(); i.hasNext(); ) {
+                Entry<Q> old = i.next();
+                if (removal || old.notification.event().getClass() == event.getClass()) {
+                    i.remove();
+                    entries.remove(old);
+                    entry.replace(old);
+                }
+            }
+            previous.add(entry);
+        }
+        entries.add(entry);
+    }
+
+    private void unindex(Entry<Q> entry) {
+        var list = byElement.get(entry.element);
+        list.remove(entry);
+        if (list.isEmpty()) {
+            byElement.remove(entry.element);
+        }
+    }
+
+    private void clear(long newFloor) {
+        entries.clear();
+        byElement.clear();
+        floor = newFloor;
+        lastStamp = newFloor;
+    }
+
+    /** Same measure as {@link EventJournal#weigh(Event)}. */
+    static long weigh(Event event) {
+        return event.toString().length();
+    }
+
+    static long weigh(List<? extends Event> events) {
+        return events.stream().mapToLong(SnapshotDiff::weigh).sum();
+    }
+
+    /** Return the element a compactable event applies to, or {@code null} for other events. */
+    private static Element elementOf(Event event) {
+        if (event instanceof NewStateEvent<?> e) {
+            return new Element(e.key(), e.id());
+        } else if (event instanceof TextEvent e) {
+            return new Element(e.key(), e.id());
+        } else if (event instanceof ElementRemovedEvent e) {
+            return new Element(e.key(), e.id());
+        } else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.gamboni.tech.history;
+
+import java.util.TreeSet;
+import java.util.function.LongSupplier;
+
+/** Keeps track of transactions running concurrently, so that they are published in stamp order even
+ * if they complete in a different order.
+ * <p>
+ *     Usage: obtain a {@link Ticket} with {@link #begin(LongSupplier)}, do the work, call {@link #awaitTurn} before
+ *     making the results visible, and always call {@link #end} in a {@code finally} block.
+ * </p><p>
+ *     Stamps are allocated outside of this object's lock, so that a slow allocator (such as a database sequence)
+ *     doesn't hold up transactions publishing their results. The allocator must return increasing values.
+ * </p>
+ */
+class StampSequencer {
+    /** A transaction's place in the sequence.
+     *
+     * @param stamp the stamp allocated to the transaction.
+     * @param barrier allocations with a lower number were still running when this one completed, so they may have
+     *                returned lower stamps.
+     */
+    record Ticket(long stamp, long barrier) {}
+
+    /** Stamps of transactions that have started but not ended. */
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    /** Numbers of the allocations currently running. */
+    private final TreeSet<Long> allocating = new TreeSet<>();
+    /** Number of allocations started so far. */
+    private long allocations = 0;
+
+    /** Allocate a new stamp and register it as in-flight. */
+    Ticket begin(LongSupplier allocator) {
+        long allocation;
+        synchronized (this) {
+            allocation = allocations++;
+            allocating.add(allocation);
+        }
+        boolean allocated = false;
+        try {
+            long stamp = allocator.getAsLong();
+            allocated = true;
+            synchronized (this) {
+                allocating.remove(allocation);
+                inFlight.add(stamp);
+                notifyAll();
+                return new Ticket(stamp, allocations);
+            }
+        } finally {
+            if (!allocated) {
+                synchronized (this) {
+                    allocating.remove(allocation);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Block until all transactions with a lower stamp have ended. */
+    synchronized void awaitTurn(Ticket ticket) {
+        boolean interrupted = false;
+        while ((!allocating.isEmpty() && allocating.first() < ticket.barrier()) ||
+                inFlight.first() != ticket.stamp()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // we must not give up: the caller would then publish out of order
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized void end(Ticket ticket) {
+        inFlight.remove(ticket.stamp());
+        notifyAll();
+    }
+}
@@ -0,0 +1,76 @@
+package org.gamboni.tech.history;
+
+import lombok.RequiredArgsConstructor;
+import org.gamboni.tech.web.ws.BroadcastTarget;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/** Registered listeners and their queries, indexed by the keys (entity type and id, list id...) their queries depend
+ * on, so that an update to an entity only needs to consider the listeners interested in it.
+ * <p>
+ *     Queries for which the key function returns an empty {@code Optional} cannot be indexed: they are considered
+ *     for all updates.
+ * </p>
+ *
+ * @param <Q> query object
+ */
+@RequiredArgsConstructor
+public class SubscriptionIndex<Q> {
+    /** Return the keys a query depends on, or an empty {@code Optional} if it cannot be indexed. */
+    private final Function<? super Q, Optional<? extends Set<?>>> keyFunction;
+
+    private final Map<BroadcastTarget, Q> all = new ConcurrentHashMap<>();
+    private final Map<BroadcastTarget, Set<?>> keysByTarget = new ConcurrentHashMap<>();
+    private final Map<Object, Map<BroadcastTarget, Q>> byKey = new ConcurrentHashMap<>();
+    private final Map<BroadcastTarget, Q> unindexed = new ConcurrentHashMap<>();
+
+    public synchronized void put(BroadcastTarget target, Q query) {
+        remove(target);
+        all.put(target, query);
+        keyFunction.apply(query).ifPresentOrElse(keys -> {
+            keysByTarget.put(target, keys);
+            for (Object key : keys) {
+                byKey.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(target, query);
+            }
+        }, () -> unindexed.put(target, query));
+    }
+
+    public synchronized void remove(BroadcastTarget target) {
+        all.remove(target);
+        unindexed.remove(target);
+        Set<?> keys = keysByTarget.remove(target);
+        if (keys != null) {
+            for (Object key : keys) {
+                byKey.computeIfPresent(key, (k, targets) -> {
+                    targets.remove(target);
+                    return targets.isEmpty() ? null : targets;
+                });
+            }
+        }
+    }
+
+    /** All registered listeners. */
+    public Map<BroadcastTarget, Q> all() {
+        return Collections.unmodifiableMap(all);
+    }
+
+    /** Listeners that may be interested in a change to the given key: those whose query depends on it, and those
+     * whose query could not be indexed. */
+    public Map<BroadcastTarget, Q> forKey(Object key) {
+        Map<BroadcastTarget, Q> indexed = byKey.getOrDefault(key, Map.of());
+        if (unindexed.isEmpty()) {
+            return Collections.unmodifiableMap(indexed);
+        } else if (indexed.isEmpty()) {
+            return Collections.unmodifiableMap(unindexed);
+        }
+        Map<BroadcastTarget, Q> result = new HashMap<>(unindexed);
+        result.putAll(indexed);
+        return result;
+    }
+}
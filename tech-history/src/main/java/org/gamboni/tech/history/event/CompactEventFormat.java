@@ -0,0 +1,194 @@
+package org.gamboni.tech.history.event;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+import org.gamboni.tech.web.js.JavaScript;
+import org.gamboni.tech.web.ui.Page;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.gamboni.tech.web.js.JavaScript.JsExpression;
+import static org.gamboni.tech.web.js.JavaScript.JsGlobal;
+import static org.gamboni.tech.web.js.JavaScript._if;
+import static org.gamboni.tech.web.js.JavaScript._return;
+import static org.gamboni.tech.web.js.JavaScript.invoke;
+import static org.gamboni.tech.web.js.JavaScript.lambda;
+import static org.gamboni.tech.web.js.JavaScript.literal;
+import static org.gamboni.tech.web.js.JavaScript.obj;
+import static org.gamboni.tech.web.js.JavaScript.seq;
+import static org.gamboni.tech.web.js.JavaScript.toArray;
+
+/** Compact alternative to the JSON serialisation of {@link StampedEventList}s, for clients receiving frequent
+ * updates.
+ * <p>
+ * A frame is an array holding the stamp followed by the events. Events whose type is part of this format are
+ * themselves arrays holding the index of their type, followed by their record components in declaration order, so
+ * that neither the type name nor the property names are repeated. Events of other types are serialised as usual.
+ * For instance {@code {"stamp":4,"updates":[{"@type":"TextEvent","key":"item","id":"12","text":"Hi"}]}} becomes
+ * {@code [4,[1,"item","12","Hi"]]}.
+ * </p><p>
+ * The type table is part of the page script (see {@link #addDecoderTo(Page)}), and clients request this format
+ * by passing its {@link #getId() id} as the {@value #PARAMETER} parameter of the websocket url, so that clients
+ * holding a script with a different table keep receiving JSON.
+ * </p>
+ */
+public class CompactEventFormat {
+
+    /** Name of the websocket url query parameter through which clients request a format. */
+    public static final String PARAMETER = "wire";
+
+    /** Format covering the events generated by this library. */
+    public static final CompactEventFormat DEFAULT = of();
+
+    private final List<Class<? extends Event>> types;
+    private final Map<Class<?>, Integer> typeIndices;
+    private final List<List<Method>> accessors;
+
+    /** Identifies the type table, so that the server only sends compact frames to clients able to decode them. */
+    @Getter
+    private final String id;
+
+    private CompactEventFormat(List<Class<? extends Event>> types) {
+        this.types = types;
+        var indices = ImmutableMap.<Class<?>, Integer>builder();
+        var accessors = ImmutableList.<List<Method>>builder();
+        var description = new StringBuilder();
+        for (int i = 0; i < types.size(); i++) {
+            Class<? extends Event> type = types.get(i);
+            Preconditions.checkArgument(type.isRecord(), "%s is not a record", type);
+            indices.put(type, i);
+            accessors.add(Arrays.stream(type.getRecordComponents())
+                    .map(RecordComponent::getAccessor)
+                    .toList());
+            description.append(type.getSimpleName());
+            for (var component : type.getRecordComponents()) {
+                description.append(',').append(component.getName());
+            }
+            description.append(';');
+        }
+        this.typeIndices = indices.build();
+        this.accessors = accessors.build();
+        this.id = Hashing.sha256()
+                .hashString(description, StandardCharsets.UTF_8)
+                .toString()
+                .substring(0, 8);
+    }
+
+    /** A format covering the events generated by this library, plus the given ones, which must be records
+     * serialised with their component names. */
+    @SafeVarargs
+    public static CompactEventFormat of(Class<? extends Event>... extraTypes) {
+        return new CompactEventFormat(ImmutableList.<Class<? extends Event>>builder()
+                .add(NewStateEvent.class, TextEvent.class, ElementRemovedEvent.class)
+                .add(extraTypes)
+                .build());
+    }
+
+    /** Return {@code true} if the given value of the {@value #PARAMETER} parameter (which may be {@code null})
+     * requests this format. */
+    public boolean isRequested(String parameter) {
+        return id.equals(parameter);
+    }
+
+    /** Serialise the given list in this format. Event components are serialised with the given mapper, like in
+     * JSON format. */
+    public String encode(ObjectMapper mapper, StampedEventList list) throws JsonProcessingException {
+        return mapper.writeValueAsString(new Frame(list));
+    }
+
+    private class Frame extends JsonSerializable.Base {
+        private final StampedEventList list;
+
+        private Frame(StampedEventList list) {
+            this.list = list;
+        }
+
+        @Override
+        public void serialize(JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartArray();
+            gen.writeNumber(list.stamp());
+            for (Event event : list.updates()) {
+                Integer index = typeIndices.get(event.getClass());
+                if (index == null) {
+                    // with type information, as done when serialising the updates collection
+                    provider.findValueSerializer(event.getClass()).serializeWithType(event, gen, provider,
+                            provider.findTypeSerializer(provider.constructType(Event.class)));
+                    continue;
+                }
+                gen.writeStartArray();
+                gen.writeNumber(index);
+                for (Method accessor : accessors.get(index)) {
+                    provider.defaultSerializeValue(get(accessor, event), gen);
+                }
+                gen.writeEndArray();
+            }
+            gen.writeEndArray();
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator gen, SerializerProvider provider, TypeSerializer typeSer)
+                throws IOException {
+            serialize(gen, provider);
+        }
+    }
+
+    private static Object get(Method accessor, Event event) {
+        try {
+            return accessor.invoke(event);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Cannot read " + accessor.getName() + " of " + event, e);
+        }
+    }
+
+    /** Declare a JavaScript function converting a parsed message back into what it would have been in JSON format.
+     * Messages in JSON format are returned unchanged.
+     *
+     * @return the function.
+     */
+    public JavaScript.Fun1 addDecoderTo(Page<?> page) {
+        var decoders = new JsGlobal(page.freshGlobal("eventTypes"));
+        var decode = new JavaScript.Fun1(page.freshGlobal("decode"));
+        page.addToScript(
+                decoders.declare(types.stream()
+                        .map(type -> lambda("e", e -> {
+                            Map<String, JsExpression> values = new LinkedHashMap<>();
+                            values.put("@type", literal(type.getSimpleName()));
+                            var components = type.getRecordComponents();
+                            for (int i = 0; i < components.length; i++) {
+                                values.put(components[i].getName(), e.arrayGet(literal(i + 1)));
+                            }
+                            return obj(values);
+                        }))
+                        .collect(toArray())),
+                decode.declare(frame -> seq(
+                        _if(isArray(frame).not(), _return(frame)),
+                        _return(obj(
+                                "stamp", frame.arrayGet(literal(0)),
+                                "updates", frame.invoke("slice", literal(1))
+                                        .invoke("map", lambda("e", e -> isArray(e).cond(
+                                                invoke(decoders.arrayGet(e.arrayGet(literal(0))), e),
+                                                e))))))));
+        return decode;
+    }
+
+    private static JsExpression isArray(JsExpression value) {
+        return new JsGlobal("Array").invoke("isArray", value);
+    }
+}
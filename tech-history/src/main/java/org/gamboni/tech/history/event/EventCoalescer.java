@@ -0,0 +1,65 @@
+package org.gamboni.tech.history.event;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Merges consecutive {@link StampedEventList}s not yet sent to a client into a single one, dropping events made
+ * obsolete by later ones:
+ * <ul>
+ *     <li>a {@link NewStateEvent} or {@link TextEvent} replaces an earlier event of the same type for the same
+ *     element,</li>
+ *     <li>an {@link ElementRemovedEvent} cancels all earlier events for the same element.</li>
+ * </ul>
+ * Other events are kept, in their original order.
+ */
+public class EventCoalescer {
+    private EventCoalescer() {}
+
+    /** Identifies the element an event applies to, and (except for removals) what it changes about it. */
+    private record Target(Class<?> type, String key, String id) {}
+
+    /** Return a list equivalent to receiving {@code older} then {@code newer}. Lists may be queued out of stamp
+     * order, as concurrent transactions send their events from different threads, so the result carries the
+     * highest of their stamps. */
+    public static StampedEventList merge(StampedEventList older, StampedEventList newer) {
+        Set<Target> superseded = new HashSet<>();
+        Set<Target> removed = new HashSet<>();
+        for (Event event : newer.updates()) {
+            if (event instanceof ElementRemovedEvent e) {
+                removed.add(new Target(null, e.key(), e.id()));
+            } else {
+                Target target = targetOf(event);
+                if (target != null) {
+                    superseded.add(target);
+                }
+            }
+        }
+
+        List<Event> merged = new ArrayList<>(older.updates().size() + newer.updates().size());
+        for (Event event : older.updates()) {
+            Target target = targetOf(event);
+            if (target == null ||
+                    !(superseded.contains(target) ||
+                            removed.contains(new Target(null, target.key(), target.id())))) {
+                merged.add(event);
+            }
+        }
+        merged.addAll(newer.updates());
+        return new StampedEventList(Math.max(older.stamp(), newer.stamp()), merged);
+    }
+
+    /** Return the target of a replaceable event, or {@code null} if the event cannot be replaced. */
+    private static Target targetOf(Event event) {
+        if (event instanceof NewStateEvent<?> e) {
+            return new Target(NewStateEvent.class, e.key(), e.id());
+        } else if (event instanceof TextEvent e) {
+            return new Target(TextEvent.class, e.key(), e.id());
+        } else if (event instanceof ElementRemovedEvent e) {
+            return new Target(ElementRemovedEvent.class, e.key(), e.id());
+        } else {
+            return null;
+        }
+    }
+}
@@ -64,6 +64,7 @@ public class EnumViewElementTemplate<D, E extends Enum<E>> implements DynamicPag
     private final String elementKey;
     private final ElementRenderer<D> base;
     private final StyleAttribute<E> style;
+    private final Optional<RenderCache> renderCache;
     private Optional<DynamicContent<E>> contents = Optional.empty();
 
     private interface StyleAttribute<E> extends DynamicAttribute<E> {
@@ -228,14 +229,16 @@ public class EnumViewElementTemplate<D, E extends Enum<E>> implements DynamicPag
                 new ConstantStyle<>(
                         base.getAttribute("class").map(attr -> (Css.ClassList) attr)
                                 .orElse(Css.ClassList.EMPTY)
-                ));
+                ),
+                Optional.empty());
     }
 
     public static <D,E extends Enum<E>> EnumViewElementTemplate<D, E> ofDynamicBase(Class<E> enumType, Function<D, Value<?>> getId, Function<D, Value<E>> getState, ElementRenderer<D> base) {
         var result = new EnumViewElementTemplate<>(enumType, getId, getState,
                 defaultEventMatcher(""),
                 "", base,
-                new PreserveStyle<>());
+                new PreserveStyle<>(),
+                Optional.empty());
         if (base instanceof IdentifiedElementRenderer<D> identifiedBase) {
             result = result.withElementKey(identifiedBase.getElementKey());
         }
@@ -248,7 +251,7 @@ public class EnumViewElementTemplate<D, E extends Enum<E>> implements DynamicPag
     public EnumViewElementTemplate<D, E> withEventKey(String eventKey) {
         return new EnumViewElementTemplate<>(enumType, getId, getState,
                 defaultEventMatcher(eventKey),
-                elementKey, base, style);
+                elementKey, base, style, renderCache);
     }
 
     public record EventData(JsExpression id, Value<? extends Enum<?>> state) {}
@@ -257,7 +260,7 @@ public class EnumViewElementTemplate<D, E extends Enum<E>> implements DynamicPag
      * @param eventMatcher a replacement matcher flagging events this template should react to.
      */
     public EnumViewElementTemplate<D, E> withEventMatcher(BiFunction<JsExpression, ClientStateHandler.MatchCallback, EventData> eventMatcher) {
-        return new EnumViewElementTemplate<>(enumType, getId, getState, eventMatcher, elementKey, base, style);
+        return new EnumViewElementTemplate<>(enumType, getId, getState, eventMatcher, elementKey, base, style, renderCache);
     }
 
     /**
@@ -265,7 +268,7 @@ public class EnumViewElementTemplate<D, E extends Enum<E>> implements DynamicPag
      *            It will be appended to the id of HTML elements.
      */
     public EnumViewElementTemplate<D, E> withElementKey(String elementKey) {
-        return new EnumViewElementTemplate<>(enumType, getId, getState, eventMatcher, elementKey, base, style);
+        return new EnumViewElementTemplate<>(enumType, getId, getState, eventMatcher, elementKey, base, style, renderCache);
     }
 
     /** Add dynamic styling varying in function of the enum value.
@@ -275,10 +278,22 @@ public class EnumViewElementTemplate<D, E extends Enum<E>> implements DynamicPag
      */
     public EnumViewElementTemplate<D, E> withStyle(Css.EnumToClassName<E> map) {
         return new EnumViewElementTemplate<>(enumType, getId, getState, eventMatcher, elementKey, base,
-                this.style.add(map::get));
+                this.style.add(map::get), renderCache);
     }
 
 
+    /** Reuse elements rendered for the same entity in the same state, instead of building them again on each page
+     * render. Only cached when the id and state are known on the server.
+     *
+     * @param renderCache where to keep rendered elements. It forgets an entity when an event about it is committed.
+     *                    When using {@link #ofDynamicBase}, changes to what is rendered for an entity without any
+     *                    event must be reported with {@link RenderCache#invalidate}.
+     */
+    public EnumViewElementTemplate<D, E> withRenderCache(RenderCache renderCache) {
+        return new EnumViewElementTemplate<>(enumType, getId, getState, eventMatcher, elementKey, base, style,
+                Optional.of(renderCache));
+    }
+
     private static JavaScript.JsExpression isOneOf(JavaScript.JsExpression value, Collection<? extends Enum<?>> collection) {
         return collection.stream()
                 .map(value::eq)
@@ -355,17 +370,26 @@ public class EnumViewElementTemplate<D, E extends Enum<E>> implements DynamicPag
         /* Create a renderer */
         return IdentifiedElementRenderer.of(elementKey, value -> {
             Value<E> enumValue = getState.apply(value);
-            Value<String> eltId = Value.of(idPrefix).plus(getId.apply(value));
-            Element withNewAttributes =
-                    ID_ATTRIBUTE.apply(
-                    style.apply(
-                    base.render(value),
-                    eltId,
-                    enumValue), eltId, enumValue);
-
-            return contents.map(c -> c.apply(enumValue))
-                    .map(c -> withNewAttributes.withContents(List.of(c)))
-                    .orElse(withNewAttributes);
+            Value<?> id = getId.apply(value);
+            if (renderCache.isPresent() && id.constantValue().isPresent() && enumValue.constantValue().isPresent()) {
+                return renderCache.get().get(idPrefix, String.valueOf(id.assertStatic()), enumValue.assertStatic(),
+                        () -> render(value, idPrefix, id, enumValue));
+            }
+            return render(value, idPrefix, id, enumValue);
         });
     }
+
+    private Element render(D value, String idPrefix, Value<?> id, Value<E> enumValue) {
+        Value<String> eltId = Value.of(idPrefix).plus(id);
+        Element withNewAttributes =
+                ID_ATTRIBUTE.apply(
+                style.apply(
+                base.render(value),
+                eltId,
+                enumValue), eltId, enumValue);
+
+        return contents.map(c -> c.apply(enumValue))
+                .map(c -> withNewAttributes.withContents(List.of(c)))
+                .orElse(withNewAttributes);
+    }
 }
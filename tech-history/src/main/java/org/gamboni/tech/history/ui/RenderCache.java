@@ -0,0 +1,106 @@
+package org.gamboni.tech.history.ui;
+
+import com.google.common.base.Preconditions;
+import org.gamboni.tech.history.HistoryStore;
+import org.gamboni.tech.history.event.ElementRemovedEvent;
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.history.event.NewStateEvent;
+import org.gamboni.tech.history.event.TextEvent;
+import org.gamboni.tech.web.ui.Element;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/** Elements rendered by {@link EnumViewElementTemplate}s, so that rendering an entity whose id and state did not change
+ * since the last page render reuses its HTML code instead of building the element again. See
+ * {@link EnumViewElementTemplate#withRenderCache(RenderCache)}.
+ * <p>
+ *     Entries are grouped by entity id, and the least recently used entities are evicted first. As templates may
+ *     render more than the state (see {@link EnumViewElementTemplate#ofDynamicBase}), all entries of an entity are
+ *     dropped when any event about it is committed, and all entries are dropped when the events of a transaction are
+ *     not all known: register this object with {@link HistoryStore#addPublishListener(HistoryStore.PublishListener)}
+ *     for that to happen. Elements rendered while an invalidation takes place are not cached, so that a page
+ *     rendered before a transaction commits does not leave its state in the cache. Safe for concurrent use.
+ * </p>
+ */
+public class RenderCache implements HistoryStore.PublishListener {
+
+    /** Distinguishes elements rendered for the same entity by different templates, or in different states. */
+    private record Variant(String idPrefix, Enum<?> state) {}
+
+    private final Map<String, Map<Variant, Element>> entities;
+    /** Incremented by each invalidation, so that elements rendered while their entity changed are not cached. */
+    private long invalidations = 0;
+
+    /**
+     * @param maxEntities maximum number of entities whose elements are kept.
+     */
+    public RenderCache(int maxEntities) {
+        Preconditions.checkArgument(maxEntities > 0, "Capacity must be positive");
+        this.entities = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<Variant, Element>> eldest) {
+                return size() > maxEntities;
+            }
+        };
+    }
+
+    /** Return the element rendered for the given entity in the given state, calling {@code render} if it is not
+     * known yet. */
+    Element get(String idPrefix, String id, Enum<?> state, Supplier<Element> render) {
+        Variant variant = new Variant(idPrefix, state);
+        long generation;
+        synchronized (this) {
+            var cached = entities.get(id);
+            if (cached != null && cached.containsKey(variant)) {
+                return cached.get(variant);
+            }
+            generation = invalidations;
+        }
+        // rendered outside the lock: concurrent misses may render the same element twice, which is harmless
+        Element rendered = render.get().prerendered();
+        synchronized (this) {
+            if (generation == invalidations) {
+                entities.computeIfAbsent(id, __ -> new HashMap<>()).put(variant, rendered);
+            }
+        }
+        return rendered;
+    }
+
+    /** Drop all elements rendered for the given entity. */
+    public synchronized void invalidate(String id) {
+        invalidations++;
+        entities.remove(id);
+    }
+
+    /** Drop all elements. */
+    public synchronized void invalidateAll() {
+        invalidations++;
+        entities.clear();
+    }
+
+    /** Drop the elements of the entity the given event is about, or all elements for events of unknown types. */
+    @Override
+    public void accept(Event event) {
+        if (event instanceof NewStateEvent<?> e) {
+            invalidate(e.id());
+        } else if (event instanceof TextEvent e) {
+            invalidate(e.id());
+        } else if (event instanceof ElementRemovedEvent e) {
+            invalidate(e.id());
+        } else {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void acceptUnknown() {
+        invalidateAll();
+    }
+
+    public synchronized int size() {
+        return entities.size();
+    }
+}
@@ -0,0 +1,44 @@
+package org.gamboni.tech.history;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BlockStampAllocatorTest {
+
+    @Test
+    public void reservesBlocks() {
+        var sequence = new AtomicLong(100);
+        var allocator = new BlockStampAllocator(() -> sequence.addAndGet(10), 10);
+
+        // first refill reads the sequence twice: 110 is skipped, 120 reserves 111..120
+        assertEquals(110, allocator.current());
+        for (int i = 111; i <= 121; i++) {
+            assertEquals(i, allocator.next());
+        }
+        assertEquals(new BlockStampAllocator.Stats(2, allocator.stats().refillNanos(), 11),
+                allocator.stats());
+        assertEquals(130, sequence.get());
+    }
+
+    @Test
+    public void blocksOfOneUseSequenceDirectly() {
+        var sequence = new AtomicLong(5);
+        var allocator = new BlockStampAllocator(sequence::incrementAndGet, 1);
+
+        assertEquals(6, allocator.next());
+        assertEquals(7, allocator.next());
+        assertEquals(2, allocator.stats().refills());
+    }
+
+    @Test
+    public void rejectsMisconfiguredSequence() {
+        var sequence = new AtomicLong();
+        var allocator = new BlockStampAllocator(sequence::incrementAndGet, 10);
+
+        assertThrows(IllegalStateException.class, allocator::next);
+    }
+}
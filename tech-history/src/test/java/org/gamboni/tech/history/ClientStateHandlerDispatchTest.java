@@ -0,0 +1,178 @@
+package org.gamboni.tech.history;
+
+import org.gamboni.tech.web.js.JavaScript;
+import org.gamboni.tech.web.ui.AbstractPage;
+import org.gamboni.tech.web.ui.Page;
+import org.gamboni.tech.web.ui.ScriptMember;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.gamboni.tech.web.js.JavaScript.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClientStateHandlerDispatchTest {
+
+    private final List<ScriptMember> script = new ArrayList<>();
+
+    private final Page<Object> page = new Page<>() {
+        @Override
+        public String freshGlobal(String base) {
+            return base;
+        }
+
+        @Override
+        public String freshElementId(String base) {
+            return base;
+        }
+
+        @Override
+        public void addToOnLoad(Function<AbstractPage.OnLoad<Object>, JsFragment> code) {
+        }
+
+        @Override
+        public void addToScript(ScriptMember... members) {
+            script.addAll(List.of(members));
+        }
+    };
+
+    private final ClientStateHandler handler = new ClientStateHandler() {
+        @Override
+        protected JsExpression helloValue(JsExpression stamp) {
+            return stamp;
+        }
+    };
+
+    private void addHandlers() {
+        for (int i = 0; i < 6; i++) {
+            String key = "k" + i;
+            handler.addHandler((event, callback) -> {
+                callback.expect(event.dot("key").eq(key));
+                return event;
+            }, event -> consoleLog(literal(key)));
+        }
+    }
+
+    private void addHandler(Function<JsExpression, JsExpression> condition, String log) {
+        handler.addHandler((event, callback) -> {
+            callback.expect(condition.apply(event));
+            return event;
+        }, event -> consoleLog(literal(log)));
+    }
+
+    private String declarations() {
+        return script.stream().map(ScriptMember::render).reduce("", String::concat);
+    }
+
+    private String applyUpdate() {
+        return handler.handleEvent(new JsGlobal("message")).format(JavaScript.Scope.empty());
+    }
+
+    @Test
+    public void dispatchesWithLookupTable() {
+        handler.addTo(page);
+        addHandlers();
+
+        assertEquals("let v = message;stamp = v.stamp;for (const v1 of v.updates) " +
+                "{let v2 = dispatch[0].get(v1.key);if (v2)v2(v1);}", applyUpdate());
+        String declarations = declarations();
+        assertTrue(declarations.contains("dispatch = [new Map([['k0', (event) => {console.log('k0');}], "),
+                declarations);
+    }
+
+    @Test
+    public void usesChainWithoutPage() {
+        addHandlers();
+
+        String code = applyUpdate();
+        assertFalse(code.contains("dispatch"), code);
+        assertTrue(code.contains("if (v1.key === 'k0')console.log('k0'); else if (v1.key === 'k1')"), code);
+    }
+
+    @Test
+    public void keepsFallbackOrder() {
+        handler.addTo(page);
+        addHandler(event -> event.dot("key").eq("k0"), "k0");
+        addHandler(event -> event.dot("urgent"), "urgent");
+        for (int i = 1; i < 4; i++) {
+            String key = "k" + i;
+            addHandler(event -> event.dot("key").eq(key), key);
+        }
+
+        assertEquals("let v = message;stamp = v.stamp;for (const v1 of v.updates) " +
+                "{let v2 = dispatch[0].get(v1.key);if (v2)v2(v1); else {if (v1.urgent)console.log('urgent');}}",
+                applyUpdate());
+        String declarations = declarations();
+        // registered before 'urgent'
+        assertTrue(declarations.contains("['k0', (event) => {console.log('k0');}]"), declarations);
+        // registered after 'urgent'
+        assertTrue(declarations.contains("['k1', (event) => {if (event.urgent)console.log('urgent'); " +
+                "else console.log('k1');}]"), declarations);
+    }
+
+    @Test
+    public void nestsTables() {
+        handler.addTo(page);
+        for (String type : List.of("A", "B")) {
+            for (int i = 0; i < 4; i++) {
+                String key = "k" + i;
+                handler.addHandler((event, callback) -> {
+                    callback.expect(event.dot("@type").eq(type));
+                    callback.expect(event.dot("key").eq(key));
+                    return event;
+                }, event -> consoleLog(literal(type + key)));
+            }
+        }
+
+        assertEquals("let v = message;stamp = v.stamp;for (const v1 of v.updates) " +
+                "{let v2 = dispatch[2].get(v1['@type']);if (v2)v2(v1);}", applyUpdate());
+        String declarations = declarations();
+        assertTrue(declarations.contains("['B', (event) => {let v1 = dispatch[1].get(event.key);if (v1)v1(event);}]"),
+                declarations);
+        assertTrue(declarations.contains("['k3', (event) => {console.log('Bk3');}]"), declarations);
+    }
+
+    @Test
+    public void doesNotHoistGuardedSelectors() {
+        handler.addTo(page);
+        for (int i = 0; i < 6; i++) {
+            String key = "k" + i;
+            handler.addHandler((event, callback) -> {
+                callback.expect(event.dot("@type").eq("A"));
+                // would throw if evaluated before the type check, for events without 'data'
+                callback.expect(event.dot("data").dot("key").eq(key));
+                return event;
+            }, event -> consoleLog(literal(key)));
+        }
+
+        String code = applyUpdate();
+        assertFalse(code.contains("dispatch"), code);
+        assertTrue(code.contains("if ((v1['@type'] === 'A') && (v1.data.key === 'k0'))console.log('k0'); " +
+                "else if ((v1['@type'] === 'A') && (v1.data.key === 'k1'))"), code);
+    }
+
+    @Test
+    public void keepsUnrecognisedConditions() {
+        handler.addTo(page);
+        for (int i = 0; i < 4; i++) {
+            String key = "k" + i;
+            handler.addHandler((event, callback) -> {
+                callback.expect(event.dot("key").eq(key));
+                callback.expect(event.dot("value").eq(event.dot("previous")).not());
+                return event;
+            }, event -> consoleLog(literal(key)));
+        }
+        addHandler(event -> event.dot("key").eq(event.dot("previous")), "same");
+
+        assertEquals("let v = message;stamp = v.stamp;for (const v1 of v.updates) " +
+                "{let v2 = dispatch[0].get(v1.key);if (v2)v2(v1); " +
+                "else {if (v1.key === v1.previous)console.log('same');}}", applyUpdate());
+        String declarations = declarations();
+        assertTrue(declarations.contains("['k0', (event) => {if (!(event.value === event.previous))console.log('k0'); " +
+                "else if (event.key === event.previous)console.log('same');}]"), declarations);
+    }
+}
@@ -0,0 +1,110 @@
+package org.gamboni.tech.history;
+
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.history.event.TextEvent;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class EventJournalTest {
+
+    private static final TextEvent A = new TextEvent("list", "a", "A");
+    private static final TextEvent B = new TextEvent("list", "b", "B");
+    private static final TextEvent C = new TextEvent("other", "c", "C");
+
+    private static List<EventJournal.Notification<String>> notify(TextEvent event) {
+        return List.of(new EventJournal.Notification<>(event, event.key()::equals));
+    }
+
+    @Test
+    public void replaysRelevantEventsSinceStamp() {
+        var journal = new EventJournal<String>(EventJournal.Retention.ofBatches(10));
+        journal.initialise(0);
+        journal.record(1, notify(A), true);
+        journal.record(2, notify(C), true);
+        journal.record(3, notify(B), true);
+
+        assertEquals(Optional.of(List.<Event>of(A, B)), journal.replay("list", 0));
+        assertEquals(Optional.of(List.<Event>of(B)), journal.replay("list", 2));
+        assertEquals(Optional.of(List.<Event>of()), journal.replay("list", 3));
+    }
+
+    @Test
+    public void evictsByCount() {
+        var journal = new EventJournal<String>(EventJournal.Retention.ofBatches(2));
+        journal.initialise(0);
+        journal.record(1, notify(A), true);
+        journal.record(2, notify(B), true);
+        journal.record(3, notify(A), true);
+
+        assertEquals(Optional.empty(), journal.replay("list", 0));
+        assertEquals(Optional.of(List.<Event>of(B, A)), journal.replay("list", 1));
+    }
+
+    @Test
+    public void evictsByBytes() {
+        var journal = new EventJournal<String>(EventJournal.Retention.ofBatches(10)
+                .withMaxBytes(A.toString().length() + B.toString().length()));
+        journal.initialise(0);
+        journal.record(1, notify(A), true);
+        journal.record(2, notify(B), true);
+        journal.record(3, notify(A), true);
+
+        assertEquals(Optional.empty(), journal.replay("list", 0));
+        assertEquals(Optional.of(List.<Event>of(B, A)), journal.replay("list", 1));
+    }
+
+    @Test
+    public void evictsByAge() {
+        var clock = new MutableClock();
+        var journal = new EventJournal<String>(EventJournal.Retention.ofBatches(10)
+                .withMaxAge(Duration.ofMinutes(1)), clock);
+        journal.initialise(0);
+        journal.record(1, notify(A), true);
+        clock.now = clock.now.plusSeconds(45);
+        journal.record(2, notify(B), true);
+        clock.now = clock.now.plusSeconds(45);
+
+        assertEquals(Optional.empty(), journal.replay("list", 0));
+        assertEquals(Optional.of(List.<Event>of(B)), journal.replay("list", 1));
+    }
+
+    @Test
+    public void incompleteTransactionLeavesGap() {
+        var journal = new EventJournal<String>(EventJournal.Retention.ofBatches(10));
+        journal.initialise(0);
+        journal.record(1, notify(A), true);
+        journal.record(2, List.of(), false);
+        journal.record(3, notify(B), true);
+
+        assertEquals(Optional.empty(), journal.replay("list", 1));
+        assertEquals(Optional.of(List.<Event>of(B)), journal.replay("list", 2));
+    }
+
+    private static class MutableClock extends Clock {
+        Instant now = Instant.EPOCH;
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.gamboni.tech.history;
+
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.history.event.StampedEventList;
+import org.gamboni.tech.history.event.TextEvent;
+import org.gamboni.tech.web.ws.BroadcastTarget;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HistoryStoreTest {
+
+    private final TestStore store = new TestStore();
+
+    @Test
+    public void resynchronisesAfterUnpublishedNotifications() {
+        store.listeners.put(new Target(), "list");
+        store.update(session -> store.publish(session, store.listeners, new TextEvent("list", "a", "A"), __ -> true));
+        store.update(session -> store.listeners.forEach((target, query) ->
+                session.notifications.put(target, new TextEvent(query, "b", "B"))));
+
+        assertEquals(new StampedEventList(2, List.of()), store.addListener(new Target(), "list", 0));
+        assertEquals(0, store.resyncedSince);
+        assertEquals(new StampedEventList(2, List.of()), store.addListener(new Target(), "list", 2));
+        assertEquals(2, store.resyncedSince);
+    }
+
+    @Test
+    public void forgetsRolledBackTransactions() {
+        store.failCommit = true;
+        assertThrows(IllegalStateException.class, () -> store.update(session ->
+                store.publish(session, store.listeners, new TextEvent("list", "a", "A"), __ -> true)));
+        store.failCommit = false;
+        store.update(session ->
+                store.publish(session, store.listeners, new TextEvent("list", "b", "B"), __ -> true));
+
+        assertEquals(new StampedEventList(2, List.of(new TextEvent("list", "b", "B"))),
+                store.addListener(new Target(), "list", 0));
+    }
+
+    @Test
+    public void registersListenersBetweenTransactions() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var update = CompletableFuture.runAsync(() -> store.update("partition", session -> {
+            store.publish(session, store.listeners, new TextEvent("list", "a", "A"), __ -> true);
+            started.countDown();
+            await(release);
+        }));
+        started.await();
+        var client = new Target();
+        var added = CompletableFuture.supplyAsync(() -> store.addListener(client, "list", 0));
+
+        Thread.sleep(50);
+        assertFalse(added.isDone());
+        release.countDown();
+        update.get(1, TimeUnit.SECONDS);
+        assertEquals(new StampedEventList(1, List.of(new TextEvent("list", "a", "A"))),
+                added.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void resynchronisesOutsideTheStoreLock() throws Exception {
+        var resyncing = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        store.resync = () -> {
+            resyncing.countDown();
+            await(release);
+        };
+        var added = CompletableFuture.supplyAsync(() -> store.addListener(new Target(), "list", 0));
+        resyncing.await();
+
+        // would time out if the resynchronisation excluded transactions
+        assertEquals(1, CompletableFuture.supplyAsync(() -> store.update(__ -> {}))
+                .get(1, TimeUnit.SECONDS).getStamp());
+        release.countDown();
+        assertEquals(new StampedEventList(0, List.of()), added.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void runsDisjointPartitionsConcurrently() throws Exception {
+        var bothStarted = new CyclicBarrier(2);
+        var a = CompletableFuture.supplyAsync(() -> store.update("a", __ -> await(bothStarted)));
+        var b = CompletableFuture.supplyAsync(() -> store.update("b", __ -> await(bothStarted)));
+
+        // would time out if the partitions were serialised
+        assertEquals(Set.of(1L, 2L), Set.of(a.get(1, TimeUnit.SECONDS).getStamp(),
+                b.get(1, TimeUnit.SECONDS).getStamp()));
+    }
+
+    @Test
+    public void publishesInStampOrder() throws Exception {
+        List<Event> published = new CopyOnWriteArrayList<>();
+        store.addPublishListener(published::add);
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var first = CompletableFuture.supplyAsync(() -> store.update("a", session -> {
+            store.publish(session, store.listeners, new TextEvent("list", "a", "A"), __ -> true);
+            started.countDown();
+            await(release);
+        }));
+        started.await();
+        var second = CompletableFuture.supplyAsync(() -> store.update("b", session ->
+                store.publish(session, store.listeners, new TextEvent("list", "b", "B"), __ -> true)));
+
+        Thread.sleep(50);
+        assertFalse(second.isDone());
+        assertEquals(List.of(), published);
+
+        release.countDown();
+        assertEquals(1, first.get(1, TimeUnit.SECONDS).getStamp());
+        assertEquals(2, second.get(1, TimeUnit.SECONDS).getStamp());
+        assertEquals(List.of(new TextEvent("list", "a", "A"), new TextEvent("list", "b", "B")), published);
+    }
+
+    @Test
+    public void reportsEventsOfAllNotificationPaths() {
+        List<Event> events = new ArrayList<>();
+        AtomicInteger unknown = new AtomicInteger();
+        store.addPublishListener(new HistoryStore.PublishListener() {
+            @Override
+            public void accept(Event event) {
+                events.add(event);
+            }
+
+            @Override
+            public void acceptUnknown() {
+                unknown.incrementAndGet();
+            }
+        });
+        store.listeners.put(new Target(), "list");
+
+        store.update(session -> store.publish(session, store.listeners, new TextEvent("list", "a", "A"), __ -> true));
+        assertEquals(0, unknown.get());
+        store.update(session -> store.listeners.forEach((target, query) ->
+                session.notifications.put(target, new TextEvent(query, "b", "B"))));
+        assertEquals(1, unknown.get());
+        store.failCommit = true;
+        assertThrows(IllegalStateException.class, () -> store.update(session ->
+                session.notifications.put(new Target(), new TextEvent("list", "c", "C"))));
+        store.failCommit = false;
+        store.update(session -> session.notifications.put(new Target(), new TextEvent("list", "d", "D")));
+        assertEquals(2, unknown.get());
+
+        assertEquals(List.of(new TextEvent("list", "a", "A"), new TextEvent("list", "b", "B"),
+                new TextEvent("list", "d", "D")), events);
+    }
+
+    @Test
+    public void releasesStampsOfFailedTransactions() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> store.update("a", __ -> {
+            throw new IllegalArgumentException();
+        }));
+        assertThrows(IllegalArgumentException.class, () -> store.update(__ -> {
+            throw new IllegalArgumentException();
+        }));
+
+        var next = CompletableFuture.supplyAsync(() -> store.update("b", __ -> {}));
+        assertEquals(3, next.get(1, TimeUnit.SECONDS).getStamp());
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await(1, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Snapshot(long stamp) implements Stamped {}
+
+    private static class TestStore extends InMemoryHistoryStore<String, Snapshot, HistoryStore.AbstractUpdateSession> {
+        final Map<BroadcastTarget, String> listeners = new ConcurrentHashMap<>();
+        volatile boolean failCommit = false;
+        volatile Runnable resync = () -> {};
+        /** The {@code since} argument of the last {@link #internalAddListener} call. */
+        volatile long resyncedSince = -1;
+
+        TestStore() {
+            super(EventJournal.Retention.ofBatches(10));
+        }
+
+        @Override
+        public Snapshot getSnapshot(String query) {
+            return new Snapshot(getStamp());
+        }
+
+        @Override
+        protected AbstractUpdateSession newTransaction(long stamp) {
+            return new AbstractUpdateSession(stamp);
+        }
+
+        @Override
+        protected <R> R inTransaction(Supplier<R> body) {
+            R result = body.get();
+            if (failCommit) {
+                throw new IllegalStateException("Rolled back");
+            }
+            return result;
+        }
+
+        @Override
+        protected void registerListener(BroadcastTarget client, String query) {
+            listeners.put(client, query);
+        }
+
+        @Override
+        protected List<? extends Event> internalAddListener(BroadcastTarget client, String query, long since) {
+            resyncedSince = since;
+            resync.run();
+            return List.of();
+        }
+
+        @Override
+        public void removeListener(BroadcastTarget client) {
+            listeners.remove(client);
+        }
+    }
+
+    private static class Target implements BroadcastTarget {
+        @Override
+        public void sendOrThrow(Object payload) {}
+
+        @Override
+        public void sendOrLog(Object payload) {}
+
+        @Override
+        public void onClose(Runnable task) {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void markClosed() {}
+    }
+}
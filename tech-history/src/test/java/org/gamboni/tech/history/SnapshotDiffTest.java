@@ -0,0 +1,123 @@
+package org.gamboni.tech.history;
+
+import org.gamboni.tech.history.event.ElementRemovedEvent;
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.history.event.NewStateEvent;
+import org.gamboni.tech.history.event.TextEvent;
+import org.junit.jupiter.api.Test;
+
+import java.time.DayOfWeek;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SnapshotDiffTest {
+
+    private static final Predicate<String> LIST = "list"::equals;
+
+    private static List<EventJournal.Notification<String>> notify(Event... events) {
+        return List.of(events).stream()
+                .map(event -> new EventJournal.Notification<String>(event, LIST))
+                .toList();
+    }
+
+    @Test
+    public void keepsLatestStateOfEachElement() {
+        var diff = new SnapshotDiff<String>(10);
+        diff.initialise(0);
+        diff.record(1, notify(new TextEvent("list", "a", "A1"), new TextEvent("list", "b", "B1")), true);
+        diff.record(2, notify(new TextEvent("list", "a", "A2"),
+                new NewStateEvent<>("list", "a", DayOfWeek.MONDAY)), true);
+        diff.record(3, notify(new TextEvent("list", "a", "A3")), true);
+
+        assertEquals(Optional.of(List.<Event>of(
+                        new TextEvent("list", "b", "B1"),
+                        new NewStateEvent<>("list", "a", DayOfWeek.MONDAY),
+                        new TextEvent("list", "a", "A3"))),
+                diff.delta("list", 0, Long.MAX_VALUE));
+        assertEquals(Optional.of(List.<Event>of(
+                        new NewStateEvent<>("list", "a", DayOfWeek.MONDAY),
+                        new TextEvent("list", "a", "A3"))),
+                diff.delta("list", 1, Long.MAX_VALUE));
+        assertEquals(Optional.of(List.<Event>of()), diff.delta("other", 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void removalCancelsEarlierEvents() {
+        var diff = new SnapshotDiff<String>(10);
+        diff.initialise(0);
+        diff.record(1, notify(new TextEvent("list", "a", "A1")), true);
+        diff.record(2, notify(new ElementRemovedEvent("list", "a"), new TextEvent("list", "a", "A2")), true);
+
+        assertEquals(Optional.of(List.<Event>of(
+                        new ElementRemovedEvent("list", "a"),
+                        new TextEvent("list", "a", "A2"))),
+                diff.delta("list", 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void compactsEventsWithDistinctAudiences() {
+        var diff = new SnapshotDiff<String>(10);
+        diff.initialise(0);
+        for (int i = 1; i <= 3; i++) {
+            String list = "list";
+            // a fresh lambda each time, as in application code capturing variables
+            diff.record(i, List.of(new EventJournal.Notification<String>(new TextEvent("list", "a", "A" + i),
+                    q -> q.equals(list))), true);
+        }
+
+        assertEquals(Optional.of(List.<Event>of(new TextEvent("list", "a", "A3"))),
+                diff.delta("list", 0, Long.MAX_VALUE));
+        assertEquals(Optional.of(List.<Event>of()), diff.delta("other", 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void resynchronisesClientsMissingReplacedEvents() {
+        var diff = new SnapshotDiff<String>(10);
+        diff.initialise(0);
+        var a1 = new TextEvent("list", "a", "A1");
+        var a2 = new TextEvent("list", "a", "A2");
+        diff.record(1, List.of(new EventJournal.Notification<>(a1, q -> true)), true);
+        diff.record(2, List.of(new EventJournal.Notification<>(a2, LIST)), true);
+
+        assertEquals(Optional.of(List.<Event>of(a2)), diff.delta("list", 0, Long.MAX_VALUE));
+        // needs a1, which is gone
+        assertEquals(Optional.empty(), diff.delta("other", 0, Long.MAX_VALUE));
+        // already had a1
+        assertEquals(Optional.of(List.<Event>of()), diff.delta("other", 1, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void comparesWeightWithLimit() {
+        var diff = new SnapshotDiff<String>(10);
+        diff.initialise(0);
+        var a = new TextEvent("list", "a", "A");
+        diff.record(1, notify(a), true);
+
+        assertEquals(Optional.of(List.<Event>of()), diff.delta("other", 0, 0));
+        assertEquals(Optional.of(List.<Event>of(a)), diff.delta("list", 0, a.toString().length()));
+        assertEquals(Optional.empty(), diff.delta("list", 0, a.toString().length() - 1));
+    }
+
+    @Test
+    public void fallsBackWhenTooOldOrTooLarge() {
+        var diff = new SnapshotDiff<String>(2);
+        diff.initialise(0);
+        var a = new TextEvent("list", "a", "A");
+        var b = new TextEvent("list", "b", "B");
+        diff.record(1, notify(a), true);
+        diff.record(2, notify(b), true);
+        diff.record(3, notify(new TextEvent("list", "c", "C")), true);
+
+        assertEquals(Optional.empty(), diff.delta("list", 0, Long.MAX_VALUE));
+        assertEquals(Optional.of(List.<Event>of(new TextEvent("list", "c", "C"))),
+                diff.delta("list", 2, Long.MAX_VALUE));
+        assertEquals(Optional.empty(), diff.delta("list", 1, a.toString().length()));
+
+        diff.record(4, notify(a), false);
+        assertEquals(Optional.empty(), diff.delta("list", 3, Long.MAX_VALUE));
+        assertEquals(Optional.of(List.<Event>of()), diff.delta("list", 4, Long.MAX_VALUE));
+    }
+}
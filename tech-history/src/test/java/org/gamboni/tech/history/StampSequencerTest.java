@@ -0,0 +1,93 @@
+package org.gamboni.tech.history;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StampSequencerTest {
+
+    private final StampSequencer sequencer = new StampSequencer();
+
+    @Test
+    public void waitsForLowerStamps() throws Exception {
+        var first = sequencer.begin(() -> 1);
+        var second = sequencer.begin(() -> 2);
+
+        var secondTurn = CompletableFuture.runAsync(() -> sequencer.awaitTurn(second));
+        Thread.sleep(50);
+        assertFalse(secondTurn.isDone());
+
+        sequencer.awaitTurn(first);
+        sequencer.end(first);
+        secondTurn.get(1, TimeUnit.SECONDS);
+        sequencer.end(second);
+    }
+
+    @Test
+    public void waitsForAllocationsInProgress() throws Exception {
+        var allocating = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var first = CompletableFuture.supplyAsync(() -> sequencer.begin(() -> {
+            allocating.countDown();
+            await(release);
+            return 1;
+        }));
+        allocating.await();
+        var second = sequencer.begin(() -> 2);
+
+        var secondTurn = CompletableFuture.runAsync(() -> sequencer.awaitTurn(second));
+        Thread.sleep(50);
+        assertFalse(secondTurn.isDone());
+
+        release.countDown();
+        var firstTicket = first.get(1, TimeUnit.SECONDS);
+        assertEquals(1, firstTicket.stamp());
+        Thread.sleep(50);
+        assertFalse(secondTurn.isDone());
+
+        sequencer.end(firstTicket);
+        secondTurn.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void ignoresLaterAllocations() throws Exception {
+        var first = sequencer.begin(() -> 1);
+        var release = new CountDownLatch(1);
+        var allocating = new CountDownLatch(1);
+        var second = CompletableFuture.supplyAsync(() -> sequencer.begin(() -> {
+            allocating.countDown();
+            await(release);
+            return 2;
+        }));
+        allocating.await();
+
+        // must not wait for the allocation, which started after ours completed
+        sequencer.awaitTurn(first);
+        sequencer.end(first);
+        release.countDown();
+        second.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void forgetsFailedAllocations() throws Exception {
+        assertThrows(IllegalStateException.class, () -> sequencer.begin(() -> {
+            throw new IllegalStateException();
+        }));
+        var ticket = sequencer.begin(() -> 1);
+        CompletableFuture.runAsync(() -> sequencer.awaitTurn(ticket)).get(1, TimeUnit.SECONDS);
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
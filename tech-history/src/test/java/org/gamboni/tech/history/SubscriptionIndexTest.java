@@ -0,0 +1,66 @@
+package org.gamboni.tech.history;
+
+import org.gamboni.tech.web.ws.BroadcastTarget;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SubscriptionIndexTest {
+
+    /** Queries starting with '*' cannot be indexed, others depend on the key equal to themselves. */
+    private final SubscriptionIndex<String> index = new SubscriptionIndex<>(query ->
+            query.startsWith("*") ? Optional.empty() : Optional.of(Set.of(query)));
+
+    @Test
+    public void returnsMatchingAndUnindexedListeners() {
+        var a = new Target();
+        var b = new Target();
+        var all = new Target();
+        index.put(a, "a");
+        index.put(b, "b");
+
+        assertEquals(Map.of(a, "a"), index.forKey("a"));
+        assertEquals(Map.of(), index.forKey("c"));
+
+        index.put(all, "*");
+        assertEquals(Map.of(a, "a", all, "*"), index.forKey("a"));
+        assertEquals(Map.of(all, "*"), index.forKey("c"));
+        assertEquals(Map.of(a, "a", b, "b", all, "*"), index.all());
+    }
+
+    @Test
+    public void removesAndReplacesListeners() {
+        var a = new Target();
+        index.put(a, "a");
+        index.put(a, "b");
+        assertEquals(Map.of(), index.forKey("a"));
+        assertEquals(Map.of(a, "b"), index.forKey("b"));
+
+        index.remove(a);
+        assertEquals(Map.of(), index.forKey("b"));
+        assertEquals(Map.of(), index.all());
+    }
+
+    private static class Target implements BroadcastTarget {
+        @Override
+        public void sendOrThrow(Object payload) {}
+
+        @Override
+        public void sendOrLog(Object payload) {}
+
+        @Override
+        public void onClose(Runnable task) {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void markClosed() {}
+    }
+}
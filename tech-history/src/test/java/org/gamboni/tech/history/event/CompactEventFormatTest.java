@@ -0,0 +1,85 @@
+package org.gamboni.tech.history.event;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.gamboni.tech.web.js.JavaScript;
+import org.gamboni.tech.web.ui.AbstractPage;
+import org.gamboni.tech.web.ui.Page;
+import org.gamboni.tech.web.ui.ScriptMember;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompactEventFormatTest {
+
+    public record CustomEvent(String key, int count) implements Event {}
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void encodesPositionally() throws Exception {
+        var list = new StampedEventList(4, List.of(
+                new NewStateEvent<>("item", "1", TimeUnit.SECONDS),
+                new TextEvent("item", "12", "Hi"),
+                new ElementRemovedEvent("item", "3"),
+                new CustomEvent("counter", 2)));
+
+        assertEquals("[4,[0,\"item\",\"1\",\"SECONDS\"],[1,\"item\",\"12\",\"Hi\"],[2,\"item\",\"3\"]," +
+                        "{\"@type\":\"CustomEvent\",\"key\":\"counter\",\"count\":2}]",
+                CompactEventFormat.DEFAULT.encode(mapper, list));
+        assertEquals("[4,[3,\"counter\",2]]",
+                CompactEventFormat.of(CustomEvent.class).encode(mapper,
+                        new StampedEventList(4, List.of(new CustomEvent("counter", 2)))));
+    }
+
+    @Test
+    public void identifiesTypeTable() {
+        var format = CompactEventFormat.DEFAULT;
+        assertEquals(format.getId(), CompactEventFormat.of().getId());
+        assertNotEquals(format.getId(), CompactEventFormat.of(CustomEvent.class).getId());
+        assertTrue(format.isRequested(format.getId()));
+        assertFalse(format.isRequested(null));
+    }
+
+    @Test
+    public void declaresDecoder() {
+        List<ScriptMember> script = new ArrayList<>();
+        var decode = CompactEventFormat.DEFAULT.addDecoderTo(new Page<>() {
+            @Override
+            public String freshGlobal(String base) {
+                return base;
+            }
+
+            @Override
+            public String freshElementId(String base) {
+                return base;
+            }
+
+            @Override
+            public void addToOnLoad(Function<AbstractPage.OnLoad<Object>, JavaScript.JsFragment> code) {
+            }
+
+            @Override
+            public void addToScript(ScriptMember... members) {
+                script.addAll(List.of(members));
+            }
+        });
+
+        assertEquals("decode(message)", decode.invoke(new JavaScript.JsGlobal("message")).toString());
+        assertEquals("eventTypes = [" +
+                        "(e) => ({'@type':'NewStateEvent','key':e[1],'id':e[2],'newState':e[3]}), " +
+                        "(e) => ({'@type':'TextEvent','key':e[1],'id':e[2],'text':e[3]}), " +
+                        "(e) => ({'@type':'ElementRemovedEvent','key':e[1],'id':e[2]})];\n" +
+                        "function decode(a) {\n" +
+                        "if (!Array.isArray(a))return a;return {'stamp':a[0],'updates':a.slice(1)" +
+                        ".map((e) => Array.isArray(e)? eventTypes[e[0]](e) : e)};\n}",
+                script.stream().map(ScriptMember::render).reduce("", String::concat));
+    }
+}
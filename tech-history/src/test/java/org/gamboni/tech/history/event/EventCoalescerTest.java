@@ -0,0 +1,53 @@
+package org.gamboni.tech.history.event;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class EventCoalescerTest {
+
+    @Test
+    public void keepsLatestEventPerElement() {
+        var older = new StampedEventList(1, List.of(
+                new TextEvent("item", "1", "first"),
+                new NewStateEvent<>("item", "1", TimeUnit.SECONDS),
+                new TextEvent("item", "2", "other")));
+        var newer = new StampedEventList(2, List.of(
+                new TextEvent("item", "1", "second")));
+
+        assertEquals(new StampedEventList(2, List.of(
+                        new NewStateEvent<>("item", "1", TimeUnit.SECONDS),
+                        new TextEvent("item", "2", "other"),
+                        new TextEvent("item", "1", "second"))),
+                EventCoalescer.merge(older, newer));
+    }
+
+    @Test
+    public void removalCancelsEarlierEvents() {
+        var older = new StampedEventList(3, List.of(
+                new TextEvent("item", "1", "text"),
+                new NewStateEvent<>("item", "1", TimeUnit.SECONDS),
+                new TextEvent("list", "1", "same id, other key")));
+        var newer = new StampedEventList(5, List.of(
+                new ElementRemovedEvent("item", "1")));
+
+        assertEquals(new StampedEventList(5, List.of(
+                        new TextEvent("list", "1", "same id, other key"),
+                        new ElementRemovedEvent("item", "1"))),
+                EventCoalescer.merge(older, newer));
+    }
+
+    @Test
+    public void keepsHighestStamp() {
+        var older = new StampedEventList(7, List.of(new TextEvent("item", "1", "first")));
+        var newer = new StampedEventList(6, List.of(new TextEvent("item", "2", "second")));
+
+        assertEquals(new StampedEventList(7, List.of(
+                        new TextEvent("item", "1", "first"),
+                        new TextEvent("item", "2", "second"))),
+                EventCoalescer.merge(older, newer));
+    }
+}
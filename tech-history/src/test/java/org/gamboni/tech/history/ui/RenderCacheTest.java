@@ -0,0 +1,74 @@
+package org.gamboni.tech.history.ui;
+
+import org.gamboni.tech.history.event.NewStateEvent;
+import org.gamboni.tech.history.event.TextEvent;
+import org.gamboni.tech.web.ui.Element;
+import org.gamboni.tech.web.ui.Html;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class RenderCacheTest {
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    private Supplier<Element> render(String text) {
+        return () -> {
+            renders.incrementAndGet();
+            return new Element("span", Html.escape(text));
+        };
+    }
+
+    @Test
+    public void reusesElementsUntilInvalidated() {
+        var cache = new RenderCache(10);
+        var first = cache.get("item-", "1", TimeUnit.SECONDS, render("a"));
+        assertEquals("<span>a</span>", first.toString());
+        assertSame(first, cache.get("item-", "1", TimeUnit.SECONDS, render("b")));
+        cache.get("item-", "1", TimeUnit.MINUTES, render("c"));
+        cache.get("other-", "1", TimeUnit.SECONDS, render("d"));
+        assertEquals(3, renders.get());
+
+        cache.accept(new NewStateEvent<>("item", "1", TimeUnit.HOURS));
+        assertEquals("<span>e</span>", cache.get("item-", "1", TimeUnit.SECONDS, render("e")).toString());
+        assertEquals(4, renders.get());
+
+        cache.accept(new TextEvent("item", "1", "x"));
+        cache.get("item-", "1", TimeUnit.SECONDS, render("f"));
+        assertEquals(5, renders.get());
+        cache.get("other-", "1", TimeUnit.SECONDS, render("g"));
+        assertEquals(6, renders.get());
+    }
+
+    @Test
+    public void dropsEverythingOnUnknownEvents() {
+        var cache = new RenderCache(10);
+        cache.get("item-", "1", TimeUnit.SECONDS, render("a"));
+        cache.get("item-", "2", TimeUnit.SECONDS, render("b"));
+        cache.accept(new TextEvent("item", "3", "x"));
+        assertEquals(2, cache.size());
+
+        cache.acceptUnknown();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntities() {
+        var cache = new RenderCache(2);
+        cache.get("item-", "1", TimeUnit.SECONDS, render("a"));
+        cache.get("item-", "2", TimeUnit.SECONDS, render("b"));
+        cache.get("item-", "1", TimeUnit.SECONDS, render("a"));
+        cache.get("item-", "3", TimeUnit.SECONDS, render("c"));
+
+        assertEquals(2, cache.size());
+        cache.get("item-", "1", TimeUnit.SECONDS, render("a"));
+        assertEquals(3, renders.get());
+        cache.get("item-", "2", TimeUnit.SECONDS, render("b"));
+        assertEquals(4, renders.get());
+    }
+}
@@ -1,11 +1,20 @@
 package org.gamboni.tech.ui;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategies;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 import org.gamboni.tech.history.event.ElementRemovedEvent;
+import org.gamboni.tech.history.event.JsSerializerModule;
+import org.gamboni.tech.history.event.NewStateEvent;
 import org.gamboni.tech.history.event.StampedEventList;
+import org.gamboni.tech.history.event.TextEvent;
 import org.junit.jupiter.api.Test;
 
+import java.time.Instant;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -24,4 +33,43 @@ public class JacksonTest {
         assertEquals("{\"stamp\":1,\"updates\":[{\"@type\":\"ElementRemovedEvent\",\"key\":\"the key\",\"id\":\"the id\"}]}",
                 new ObjectMapper().writeValueAsString(object));
     }
+
+    @Test
+    public void testGeneratedSerialisers() throws Exception {
+        var object = new StampedEventList(2, List.of(
+                new NewStateEvent<>("item", "1", TimeUnit.SECONDS),
+                new TextEvent("item", "2", null),
+                new ElementRemovedEvent("item", "3")));
+        String expected = new ObjectMapper().writeValueAsString(object);
+        var mapper = new ObjectMapper().registerModule(new JsSerializerModule());
+        assertEquals(expected, mapper.writeValueAsString(object));
+        assertEquals("{\"@type\":\"ElementRemovedEvent\",\"key\":\"the key\",\"id\":\"the id\"}",
+                mapper.writeValueAsString(new ElementRemovedEvent("the key", "the id")));
+    }
+
+    /** Instants are not supported by a bare ObjectMapper: handle them like the jsr310 module does with
+     * {@code WRITE_DATES_AS_TIMESTAMPS} disabled. */
+    private static ObjectMapper mapperWithInstants() {
+        return new ObjectMapper().registerModule(new SimpleModule()
+                .addSerializer(Instant.class, ToStringSerializer.instance));
+    }
+
+    @Test
+    public void testGeneratedSerialisersFollowConfiguration() throws Exception {
+        var item = new TimedItem("the item", Instant.ofEpochSecond(1700000000, 123000000), null);
+        var generated = new org.gamboni.tech.ui.JsSerializerModule();
+
+        assertEquals("{\"itemName\":\"the item\",\"createdAt\":\"2023-11-14T22:13:20.123Z\",\"count\":null}",
+                mapperWithInstants().registerModule(generated).writeValueAsString(item));
+        assertEquals("{\"itemName\":\"the item\",\"createdAt\":\"2023-11-14T22:13:20.123Z\"}",
+                mapperWithInstants()
+                        .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                        .registerModule(generated)
+                        .writeValueAsString(item));
+        assertEquals("{\"item_name\":\"the item\",\"created_at\":\"2023-11-14T22:13:20.123Z\",\"count\":null}",
+                mapperWithInstants()
+                        .setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE)
+                        .registerModule(generated)
+                        .writeValueAsString(item));
+    }
 }
@@ -0,0 +1,9 @@
+package org.gamboni.tech.ui;
+
+import org.gamboni.tech.web.js.JS;
+
+import java.time.Instant;
+
+/** A record with components whose serialisation depends on the {@code ObjectMapper} configuration. */
+@JS
+public record TimedItem(String itemName, Instant createdAt, Integer count) {}
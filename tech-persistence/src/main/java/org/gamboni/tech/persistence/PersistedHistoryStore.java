@@ -9,19 +9,29 @@ import jakarta.persistence.criteria.Root;
 import jakarta.transaction.Transactional;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.gamboni.tech.history.BlockStampAllocator;
+import org.gamboni.tech.history.EventJournal;
 import org.gamboni.tech.history.HistoryStore;
 import org.gamboni.tech.history.Stamped;
+import org.gamboni.tech.history.SubscriptionIndex;
 import org.gamboni.tech.history.event.Event;
 import org.gamboni.tech.history.event.StampedEventList;
 import org.gamboni.tech.web.ws.BroadcastTarget;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.BiConsumer;
-import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
+/** A {@link HistoryStore} backed by JPA, allocating stamps from the {@code versions} database sequence.
+ * <p>
+ *     Listeners and the journal live in memory, so only the instance running a transaction notifies clients of it:
+ *     a store must have a single writer instance. Stamps survive restarts, as they are reserved from the sequence.
+ * </p>
+ */
 @Slf4j
 public abstract class PersistedHistoryStore<
         Q,
@@ -31,27 +41,80 @@ public abstract class PersistedHistoryStore<
     @Inject
     protected EntityManager em;
 
-    private final Map<BroadcastTarget, Q> sessions = new HashMap<>();
+    /** Concurrent because partitioned updates read it in parallel, while clients come and go. */
+    private final SubscriptionIndex<Q> sessions = new SubscriptionIndex<>(this::subscriptionKeys);
+
+    private final BlockStampAllocator stamps;
+
+    protected PersistedHistoryStore() {
+        this(EventJournal.Retention.DISABLED, 1);
+    }
+
+    protected PersistedHistoryStore(EventJournal.Retention journalRetention) {
+        this(journalRetention, 1);
+    }
+
+    /**
+     * @param journalRetention see {@link EventJournal}.
+     * @param stampBlockSize number of stamps to reserve at a time from the {@code versions} sequence, which must be
+     *                       declared with the same increment. See {@link BlockStampAllocator}.
+     */
+    protected PersistedHistoryStore(EventJournal.Retention journalRetention, int stampBlockSize) {
+        super(journalRetention);
+        this.stamps = new BlockStampAllocator(
+                () -> ((Number) em.createNativeQuery("select next value for versions").getSingleResult())
+                        .longValue(),
+                stampBlockSize);
+    }
+
+    /** Return the keys (for instance entity type and id) of the data the given query depends on, or an empty
+     * {@code Optional} if that is not known. Used to only consider the relevant listeners when calling the
+     * {@code notifyListeners} overloads taking a key. The default implementation does not index anything.
+     */
+    protected Optional<? extends Set<?>> subscriptionKeys(Q query) {
+        return Optional.empty();
+    }
 
     @Override
     protected long incrementStamp() {
-        return ((Number) em.createNativeQuery("select next value for versions").getSingleResult())
-                .longValue();
+        return stamps.next();
     }
 
+    /** Returns {@link #currentStamp()}. Not overridable: the {@code versions} sequence runs ahead of the stamps
+     * actually used as soon as blocks are larger than one stamp. */
+    @Override
+    protected final long getStamp() {
+        return currentStamp();
+    }
+
+    /** The last stamp allocated by this instance. */
+    protected long currentStamp() {
+        return stamps.current();
+    }
+
+    /** Stamp allocation counters, for monitoring. */
+    public BlockStampAllocator.Stats getStampStats() {
+        return stamps.stats();
+    }
+
+    /** Commits before the events of the transaction are recorded and published. Note that if the caller already
+     * runs a transaction, the work joins it and is only committed with it. */
     @Override
     @Transactional
-    public synchronized PerClientUpdates update(Consumer<T> work) {
-        return super.update(work);
+    protected <R> R inTransaction(Supplier<R> body) {
+        return super.inTransaction(body);
     }
 
     @Override
     @Transactional
     public StampedEventList addListener(BroadcastTarget client, Q query, long since) {
         log.debug("Adding {} to broadcast list", client);
+        return super.addListener(client, query, since);
+    }
 
+    @Override
+    protected void registerListener(BroadcastTarget client, Q query) {
         sessions.put(client, query);
-        return super.addListener(client, query, since);
     }
 
     @Override
@@ -70,12 +133,41 @@ public abstract class PersistedHistoryStore<
         return Optional.ofNullable(em.find(entityType, id));
     }
 
+    /** Send to each listener the event computed from its query, if any. Such events cannot be recorded in the
+     * {@link EventJournal}, as they are only known for current listeners: clients reconnecting later with an older
+     * stamp are resynchronised from scratch. */
     protected void notifyListeners(Multimap<BroadcastTarget, Event> notifications,
                                    Function<Q, Optional<? extends Event>> queryApplication) {
-        sessions.forEach((target, query) ->
-                queryApplication.apply(query)
-                                .ifPresent(event ->
-                notifications.put(target,
-                event)));
+        notifyListeners(notifications, sessions.all(), queryApplication);
+    }
+
+    /** Like {@link #notifyListeners(Multimap, Function)}, but only considering listeners whose
+     * {@link #subscriptionKeys(Object) subscription keys} contain {@code key}, or could not be indexed.
+     */
+    protected void notifyListeners(Multimap<BroadcastTarget, Event> notifications, Object key,
+                                   Function<Q, Optional<? extends Event>> queryApplication) {
+        notifyListeners(notifications, sessions.forKey(key), queryApplication);
+    }
+
+    private void notifyListeners(Multimap<BroadcastTarget, Event> notifications, Map<BroadcastTarget, Q> listeners,
+                                 Function<Q, Optional<? extends Event>> queryApplication) {
+        listeners.forEach((target, query) ->
+                queryApplication.apply(query).ifPresent(event -> notifications.put(target, event)));
+    }
+
+    /** Send the given event to all listeners whose query matches {@code audience}. Unlike
+     * {@link #notifyListeners(Multimap, Function)}, the event is known independently of queries, so that it is also
+     * recorded in the {@link EventJournal} (and {@link org.gamboni.tech.history.SnapshotDiff deltas}), and clients
+     * reconnecting later can have it replayed.
+     */
+    protected void notifyListeners(T session, Event event, Predicate<? super Q> audience) {
+        publish(session, sessions.all(), event, audience);
+    }
+
+    /** Like {@link #notifyListeners(AbstractUpdateSession, Event, Predicate)}, but only considering listeners whose
+     * {@link #subscriptionKeys(Object) subscription keys} contain {@code key}, or could not be indexed.
+     */
+    protected void notifyListeners(T session, Object key, Event event, Predicate<? super Q> audience) {
+        publish(session, sessions.forKey(key), event, audience);
     }
 }
@@ -1,13 +1,39 @@
 package org.gamboni.tech.quarkus;
 
+import io.quarkus.arc.deployment.AdditionalBeanBuildItem;
+import io.quarkus.deployment.annotations.BuildProducer;
 import io.quarkus.deployment.annotations.BuildStep;
+import io.quarkus.deployment.builditem.CombinedIndexBuildItem;
+import io.quarkus.deployment.builditem.GeneratedResourceBuildItem;
+import io.quarkus.deployment.builditem.nativeimage.NativeImageResourceBuildItem;
 import io.quarkus.deployment.builditem.nativeimage.ReflectiveClassBuildItem;
+import io.quarkus.resteasy.reactive.spi.MessageBodyWriterBuildItem;
+import jakarta.annotation.PostConstruct;
+import jakarta.ws.rs.core.MediaType;
 import org.gamboni.tech.history.event.ElementRemovedEvent;
 import org.gamboni.tech.history.event.NewStateEvent;
 import org.gamboni.tech.history.event.StampedEventList;
 import org.gamboni.tech.history.event.TextEvent;
+import org.gamboni.tech.web.ui.AbstractPage;
+import org.gamboni.tech.web.ui.Html;
+import org.gamboni.tech.web.ui.Script;
+import org.jboss.jandex.AnnotationInstance;
+import org.jboss.jandex.ClassInfo;
+import org.jboss.jandex.DotName;
+import org.jboss.logging.Logger;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class TechQuarkusExtensionSetup {
+    private static final Logger log = Logger.getLogger(TechQuarkusExtensionSetup.class);
+
     @BuildStep
     public ReflectiveClassBuildItem reflectionSetup() {
         return ReflectiveClassBuildItem.builder(
@@ -21,4 +47,82 @@ public class TechQuarkusExtensionSetup {
                 .classes()
                 .build();
     }
+
+    @BuildStep
+    public AdditionalBeanBuildItem eventSerializers() {
+        return AdditionalBeanBuildItem.unremovableOf(EventSerializerCustomizer.class);
+    }
+
+    @BuildStep
+    public MessageBodyWriterBuildItem htmlWriter() {
+        return new MessageBodyWriterBuildItem(HtmlBodyWriter.class.getName(), Html.class.getName(),
+                List.of(MediaType.TEXT_HTML));
+    }
+
+    /** Render the script of each {@link QuarkusPage} annotated with {@link PrerenderedScript} once, at build time,
+     * and store it as a class path resource which {@link QuarkusPage} then serves instead of formatting its script.
+     * The script is built from two instances of the page, and the build fails unless they have the same
+     * {@link Script#sourceHash()}, which is stored next to the script for {@link PrerenderedScript#verify()}.
+     */
+    @BuildStep
+    public void prerenderScripts(CombinedIndexBuildItem index,
+                                 BuildProducer<GeneratedResourceBuildItem> resources,
+                                 BuildProducer<NativeImageResourceBuildItem> nativeResources) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        for (AnnotationInstance annotation : index.getIndex().getAnnotations(
+                DotName.createSimple(PrerenderedScript.class.getName()))) {
+            ClassInfo page = annotation.target().asClass();
+            try {
+                Class<?> type = loader.loadClass(page.name().toString());
+                if (!QuarkusPage.class.isAssignableFrom(type) || Modifier.isAbstract(type.getModifiers())) {
+                    throw new IllegalStateException("@" + PrerenderedScript.class.getSimpleName() + " on " +
+                            page.name() + ", which is not a concrete QuarkusPage");
+                }
+                Script script = buildScript(type);
+                String sourceHash = script.sourceHash();
+                if (!sourceHash.equals(buildScript(type).sourceHash())) {
+                    throw new IllegalStateException("The script of " + page.name() + " differs between instances, " +
+                            "so it cannot be rendered at build time");
+                }
+                String name = QuarkusPage.getPrerenderedScriptName(type, script.isMinified());
+                String hashName = QuarkusPage.getPrerenderedHashName(type, script.isMinified());
+                resources.produce(new GeneratedResourceBuildItem(name,
+                        script.render().getBytes(StandardCharsets.UTF_8)));
+                resources.produce(new GeneratedResourceBuildItem(hashName,
+                        sourceHash.getBytes(StandardCharsets.UTF_8)));
+                nativeResources.produce(new NativeImageResourceBuildItem(name, hashName));
+                log.debugf("Rendered script of %s at build time", page.name());
+            } catch (ReflectiveOperationException | LinkageError e) {
+                throw new IllegalStateException("Could not render the script of " + page.name() + " at build time", e);
+            }
+        }
+    }
+
+    private static Script buildScript(Class<?> type) throws ReflectiveOperationException {
+        var constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Object page = constructor.newInstance();
+
+        // Like CDI: superclass callbacks first
+        Deque<Class<?>> hierarchy = new ArrayDeque<>();
+        for (Class<?> pointer = type; pointer != QuarkusPage.class; pointer = pointer.getSuperclass()) {
+            // (QuarkusPage's own callback loads the script rendered here)
+            hierarchy.push(pointer);
+        }
+        Set<String> invoked = new HashSet<>();
+        for (Class<?> level : hierarchy) {
+            for (Method method : level.getDeclaredMethods()) {
+                // overridden callbacks only run once, by virtual dispatch
+                if (method.isAnnotationPresent(PostConstruct.class) &&
+                        (Modifier.isPrivate(method.getModifiers()) || invoked.add(method.getName()))) {
+                    method.setAccessible(true);
+                    method.invoke(page);
+                }
+            }
+        }
+
+        Method getScript = AbstractPage.class.getDeclaredMethod("getScript");
+        getScript.setAccessible(true);
+        return (Script) getScript.invoke(page);
+    }
 }
@@ -29,6 +29,8 @@ dependencies {
 
     api("io.quarkus:quarkus-websockets-next")
     implementation("io.quarkus:quarkus-resteasy-reactive")
+    implementation("io.quarkus:quarkus-jackson")
+    implementation("io.quarkus:quarkus-virtual-threads")
 
     compileOnly(lombok)
     annotationProcessor(lombok)
@@ -0,0 +1,16 @@
+package org.gamboni.tech.quarkus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.jackson.ObjectMapperCustomizer;
+import jakarta.inject.Singleton;
+import org.gamboni.tech.history.event.JsSerializerModule;
+
+/** Registers the serializers generated for the event records, so that {@link QuarkusWebSocket} broadcasts don't go
+ * through Jackson bean introspection. */
+@Singleton
+public class EventSerializerCustomizer implements ObjectMapperCustomizer {
+    @Override
+    public void customize(ObjectMapper mapper) {
+        mapper.registerModule(new JsSerializerModule());
+    }
+}
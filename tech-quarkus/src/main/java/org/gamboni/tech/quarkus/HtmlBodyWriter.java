@@ -0,0 +1,38 @@
+package org.gamboni.tech.quarkus;
+
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyWriter;
+import org.gamboni.tech.web.ui.Html;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/** Allows resource methods to return {@link Html} (typically {@code render(data)} of a {@link QuarkusPage}), which
+ * is then streamed to the response instead of being converted to a {@code String} first. Registered by the
+ * deployment module. Writes UTF-8 unless the response media type specifies another charset. */
+@Produces(MediaType.TEXT_HTML)
+public class HtmlBodyWriter implements MessageBodyWriter<Html> {
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return Html.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public void writeTo(Html html, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+        String charset = mediaType.getParameters().get(MediaType.CHARSET_PARAMETER);
+        if (charset == null) {
+            httpHeaders.putSingle(HttpHeaders.CONTENT_TYPE, mediaType.withCharset(StandardCharsets.UTF_8.name()));
+            html.render(entityStream, StandardCharsets.UTF_8);
+        } else {
+            html.render(entityStream, Charset.forName(charset));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.gamboni.tech.quarkus;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Render the script of the annotated {@link QuarkusPage} at build time, so that it doesn't need to be formatted at
+ * run time.
+ * <p>
+ *     The build instantiates the page with its no-argument constructor, without injecting anything, and runs its
+ *     {@code @PostConstruct} methods. Only annotate pages for which this has no side effect, and whose script doesn't
+ *     depend on injected beans or configuration. The build fails if the page cannot be rendered, or if two instances
+ *     render different scripts. At run time, the script rendered at build time is then trusted as it is.
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface PrerenderedScript {
+    /** Whether to also check, when the script is first served, that the script built at run time still formats to
+     * the same code as at build time, and ignore the build time rendering otherwise. The check costs formatting the
+     * script (but not minifying it), so this is only meant to diagnose a page whose script may differ at run time. */
+    boolean verify() default false;
+}
@@ -3,10 +3,12 @@ package org.gamboni.tech.quarkus;
 import jakarta.annotation.PostConstruct;
 import org.gamboni.tech.history.ClientStateHandler;
 import org.gamboni.tech.history.Stamped;
+import org.gamboni.tech.history.event.CompactEventFormat;
 import org.gamboni.tech.history.ui.DynamicPage;
 import org.gamboni.tech.web.js.JavaScript;
 import org.gamboni.tech.web.js.JsPersistentWebSocket;
 
+import java.util.Optional;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -19,16 +21,38 @@ public abstract class QuarkusDynamicPage<T extends Stamped> extends QuarkusPage<
         protected JavaScript.JsExpression helloValue(JavaScript.JsExpression stamp) {
             return QuarkusDynamicPage.this.helloValue(stamp);
         }
+
+        @Override
+        protected Optional<CompactEventFormat> getCompactFormat() {
+            return QuarkusDynamicPage.this.getCompactFormat();
+        }
     };
 
     private JsPersistentWebSocket.Added socket;
 
     protected abstract JavaScript.JsExpression helloValue(JavaScript.JsExpression stamp);
 
+    /** The compact format to request from the back end, which must be the one returned by
+     * {@link QuarkusWebSocket#getCompactFormat()}. The default implementation returns an empty {@code Optional}, to
+     * always receive JSON. */
+    protected Optional<CompactEventFormat> getCompactFormat() {
+        return Optional.empty();
+    }
+
+
+    /** Whether to request large messages to be compressed, which the back end does if
+     * {@link QuarkusWebSocket#getCompression()} is enabled. The default implementation returns {@code false}. */
+    protected boolean isCompressionRequested() {
+        return false;
+    }
 
     @PostConstruct
     public void postConstructDynamicPage() {
-        socket = new JsPersistentWebSocket(stateHandler).addTo(this);
+        var client = new JsPersistentWebSocket(stateHandler);
+        if (isCompressionRequested()) {
+            client.withCompression();
+        }
+        socket = client.addTo(this);
         addToOnLoad(onLoad -> stateHandler.init(onLoad.addParameter(
                 data -> literal(data.stamp()))));
     }
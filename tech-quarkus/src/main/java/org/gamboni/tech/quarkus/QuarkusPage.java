@@ -1,34 +1,118 @@
 package org.gamboni.tech.quarkus;
 
+import io.quarkus.runtime.LaunchMode;
+import jakarta.annotation.PostConstruct;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import lombok.extern.slf4j.Slf4j;
 import org.gamboni.tech.web.ui.AbstractPage;
 import org.gamboni.tech.web.ui.Script;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+@Slf4j
 public abstract class QuarkusPage<T> extends AbstractPage<T> {
 
     protected QuarkusPage() {
-        super(new Script());
+        // minified in production only, to keep scripts readable while developing
+        super(new Script(LaunchMode.current() == LaunchMode.NORMAL));
+
+        Class<?> pageClass = getPageClass(this.getClass());
+        var pathAnn = pageClass.getAnnotation(Path.class);
+        if (pathAnn != null) {
+            setBasePath(pathAnn.value());
+        }
+    }
 
-        /* Look for a @Path annotation. We need to look at superclasses because
-         * Quarkus may create subclasses to intercept stuff.
-         */
-        Class<?> pointer = this.getClass();
+    /** Look for a @Path annotation. We need to look at superclasses because
+     * Quarkus may create subclasses to intercept stuff. Return the given class if none is found.
+     */
+    private static Class<?> getPageClass(Class<?> type) {
+        Class<?> pointer = type;
         while (pointer != null) {
-            var pathAnn = pointer.getAnnotation(Path.class);
-            if (pathAnn != null) {
-                setBasePath(pathAnn.value());
-                break;
+            if (pointer.getAnnotation(Path.class) != null) {
+                return pointer;
             }
             pointer = pointer.getSuperclass();
         }
+        return type;
+    }
+
+    /** Class path resource holding the script of the given page, when rendered at build time. */
+    public static String getPrerenderedScriptName(Class<?> type, boolean minified) {
+        return Script.PRERENDERED_PATH + getPageClass(type).getName() + (minified ? ".min.js" : ".js");
+    }
+
+    /** Class path resource holding the {@link Script#sourceHash()} of a script rendered at build time. */
+    public static String getPrerenderedHashName(Class<?> type, boolean minified) {
+        return getPrerenderedScriptName(type, minified) + ".hash";
+    }
+
+    /** Use the script rendered at build time, if the page is annotated with {@link PrerenderedScript}. Runs before
+     * the {@code @PostConstruct} methods of subclasses, which may still add to the script. Not run on client
+     * proxies, nor by the build itself. */
+    @PostConstruct
+    protected void loadPrerenderedScript() {
+        Class<?> pageClass = getPageClass(this.getClass());
+        var annotation = pageClass.getAnnotation(PrerenderedScript.class);
+        if (annotation == null) {
+            return;
+        }
+        boolean minified = getScript().isMinified();
+        Optional<String> script = readResource(pageClass, getPrerenderedScriptName(pageClass, minified));
+        if (script.isEmpty()) {
+            log.warn("No script rendered at build time for {}, rendering it at run time", pageClass.getName());
+        } else if (!annotation.verify()) {
+            getScript().setPrerendered(script.get());
+        } else {
+            readResource(pageClass, getPrerenderedHashName(pageClass, minified)).ifPresentOrElse(
+                    hash -> getScript().setPrerendered(script.get(), hash.trim()),
+                    () -> log.warn("No hash for the script of {} rendered at build time, rendering it at run time",
+                            pageClass.getName()));
+        }
+    }
+
+    private static Optional<String> readResource(Class<?> pageClass, String name) {
+        try (InputStream in = pageClass.getClassLoader().getResourceAsStream(name)) {
+            return (in == null) ?
+                    Optional.empty() :
+                    Optional.of(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @GET
     @Path("script.js")
     @Produces("text/javascript")
-    public String script() {
-        return getScript().render();
+    public Response script(@QueryParam(Script.VERSION_PARAMETER) String version,
+                           @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                           @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+        Script.Rendered script = getScript().getRendered();
+        Response.ResponseBuilder response;
+        if (script.matches(ifNoneMatch)) {
+            response = Response.notModified();
+        } else if (Script.Rendered.acceptsGzip(acceptEncoding)) {
+            response = Response.ok(script.gzip())
+                    .header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        } else {
+            response = Response.ok(script.utf8());
+        }
+        return response
+                .type("text/javascript; charset=utf-8")
+                .tag(new EntityTag(script.hash()))
+                .header(HttpHeaders.CACHE_CONTROL, script.cacheControl(version))
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .build();
     }
 }
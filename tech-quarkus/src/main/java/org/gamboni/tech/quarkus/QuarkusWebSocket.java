@@ -3,20 +3,40 @@ package org.gamboni.tech.quarkus;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import io.quarkus.virtual.threads.VirtualThreads;
 import io.quarkus.websockets.next.*;
 import io.smallrye.common.annotation.Blocking;
 import io.smallrye.common.annotation.NonBlocking;
+import io.smallrye.mutiny.Uni;
+import jakarta.annotation.PostConstruct;
 import jakarta.inject.Inject;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.gamboni.tech.history.HistoryStore;
+import org.gamboni.tech.history.event.CompactEventFormat;
+import org.gamboni.tech.history.event.EventCoalescer;
+import org.gamboni.tech.history.event.StampedEventList;
 import org.gamboni.tech.web.ws.BroadcastTarget;
 import org.gamboni.tech.web.ws.ClientCollection;
+import org.gamboni.tech.web.ws.EncodedPayload;
+import org.gamboni.tech.web.ws.FrameCompression;
+import org.gamboni.tech.web.ws.OutboundQueue;
+import org.gamboni.tech.web.ws.TransferStats;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
 @Slf4j
@@ -28,12 +48,123 @@ public abstract class QuarkusWebSocket {
     @Inject
     protected HistoryStore<?, ?, ?> abstractStore;
 
-    private final ClientCollection<WebSocketConnection>  clients = new ClientCollection<>();
+    /** Name of the configuration property setting the default {@link ExecutionMode}. */
+    public static final String EXECUTION_MODE_PROPERTY = "gamboni.websocket.execution-mode";
 
+    @ConfigProperty(name = EXECUTION_MODE_PROPERTY, defaultValue = "WORKER")
+    protected ExecutionMode executionMode;
+
+    @Inject
+    @VirtualThreads
+    protected ExecutorService virtualThreads;
+
+    private final ClientCollection<WebSocketConnection>  clients = new ClientCollection<>(this::encode);
+
+    /** How incoming messages are serialised. */
+    public enum ConcurrencyMode {
+        /** One message at a time across all connections. Connections opening and closing also wait for the
+         * message being handled. */
+        GLOBAL,
+        /** One message at a time per connection, but messages from different connections are handled in
+         * parallel. {@link #handleMessage} must then be thread-safe. */
+        PER_CONNECTION
+    }
+
+    /** Which threads handle incoming messages. */
+    public enum ExecutionMode {
+        /** The worker thread running the {@link Blocking} callback. */
+        WORKER,
+        /** A virtual thread (on Java 21 or later: Quarkus falls back to worker threads on earlier versions). Worker
+         * threads then only hand messages over, so that bursts of messages blocking on the store, such as a storm of
+         * reconnecting clients each running {@code @Transactional} queries, no longer exhaust the worker pool.
+         * Messages from a given connection are still handled one at a time, in order. {@link #handleMessage} runs
+         * without the request context of the callback: annotate it with {@code @ActivateRequestContext} if it
+         * needs one. This mode defaults to {@link ConcurrencyMode#PER_CONNECTION}, so {@link #handleMessage}
+         * must be thread-safe. */
+        VIRTUAL_THREADS
+    }
+
+    /** Used in {@link ConcurrencyMode#GLOBAL} mode. A {@code Lock} rather than a monitor, so that handlers may run on
+     * virtual threads without pinning their carrier. */
+    private final Lock globalLock = new ReentrantLock();
+
+    /** How incoming messages are serialised. Defaults to {@link ConcurrencyMode#GLOBAL}, for handlers that are not
+     * thread-safe, except in {@link ExecutionMode#VIRTUAL_THREADS} mode, where it defaults to
+     * {@link ConcurrencyMode#PER_CONNECTION}: virtual threads waiting for a single lock would gain nothing. */
+    protected ConcurrencyMode getConcurrencyMode() {
+        return (getExecutionMode() == ExecutionMode.VIRTUAL_THREADS) ?
+                ConcurrencyMode.PER_CONNECTION :
+                ConcurrencyMode.GLOBAL;
+    }
+
+    @PostConstruct
+    protected void checkModes() {
+        if (getExecutionMode() == ExecutionMode.VIRTUAL_THREADS && getConcurrencyMode() == ConcurrencyMode.GLOBAL) {
+            log.warn("{} handles messages on virtual threads in {} concurrency mode: they still run one at a time",
+                    getClass().getSimpleName(), ConcurrencyMode.GLOBAL);
+        }
+    }
+
+    /** Which threads handle incoming messages. Defaults to the {@value #EXECUTION_MODE_PROPERTY} configuration
+     * property, itself defaulting to {@link ExecutionMode#WORKER}. */
+    protected ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /** The compact format to use with clients requesting it, which must match the one used by pages (see
+     * {@link org.gamboni.tech.history.ClientStateHandler#getCompactFormat()}). The default implementation returns an
+     * empty {@code Optional}, to always send JSON. */
+    protected Optional<CompactEventFormat> getCompactFormat() {
+        return Optional.empty();
+    }
+
+    /** How to compress messages for clients requesting it. The default implementation returns
+     * {@link FrameCompression#DISABLED}. When enabling it, also disable transport-level compression by setting
+     * {@code quarkus.websockets-next.server.per-message-compression-supported} to {@code false}.
+     * <p>This is called for each connection, and should return the same instance every time, so that broadcast
+     * messages are compressed once.</p> */
+    protected FrameCompression getCompression() {
+        return FrameCompression.DISABLED;
+    }
+
+    /** Maximum number of messages waiting to be sent to a single client. See {@link OutboundQueue}. */
+    protected int getOutboundQueueCapacity() {
+        return 256;
+    }
+
+    /** What to do when a client's outbound queue is full. */
+    protected OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return OutboundQueue.OverflowPolicy.COALESCE;
+    }
+
+    /** Merge two messages queued for the same client, for {@link OutboundQueue.OverflowPolicy#COALESCE}. Return
+     * {@code null} if they cannot be merged. The default implementation merges {@link StampedEventList}s with
+     * {@link EventCoalescer}. */
+    protected Object coalesce(Object older, Object newer) {
+        if (unwrap(older) instanceof StampedEventList o && unwrap(newer) instanceof StampedEventList n) {
+            return EventCoalescer.merge(o, n);
+        } else {
+            return null;
+        }
+    }
+
+    private static Object unwrap(Object payload) {
+        return (payload instanceof EncodedPayload encoded) ? encoded.source() : payload;
+    }
 
-    @RequiredArgsConstructor
     public class SessionBroadcastTarget implements BroadcastTarget {
         private final WebSocketConnection session;
+        private final OutboundQueue outbound;
+        /** Whether this client requested the {@link #getCompactFormat() compact format}. */
+        private final boolean compact;
+        private final FrameCompression compression;
+        /** Whether this client requested {@link #getCompression() compression}. */
+        private final boolean deflate;
+        private final TransferStats stats = new TransferStats();
+        /** Serialises messages from this client in {@link ConcurrencyMode#PER_CONNECTION} mode. */
+        private final Lock inbound = new ReentrantLock();
+        /** Completes when the last message submitted in {@link ExecutionMode#VIRTUAL_THREADS} mode is handled. */
+        private CompletableFuture<Void> lastInbound = CompletableFuture.completedFuture(null);
 
         /**
          * (Final but contents is mutable)
@@ -41,17 +172,61 @@ public abstract class QuarkusWebSocket {
         private final List<Runnable> onClose = new ArrayList<>();
         private volatile boolean open = true;
 
+        public SessionBroadcastTarget(WebSocketConnection session) {
+            this.session = session;
+            this.compact = getCompactFormat()
+                    .map(format -> format.isRequested(queryParameter(session, CompactEventFormat.PARAMETER)))
+                    .orElse(false);
+            this.compression = getCompression();
+            this.deflate = compression.isEnabled() &&
+                    queryParameter(session, FrameCompression.PARAMETER) != null;
+            this.outbound = new OutboundQueue(
+                    getOutboundQueueCapacity(),
+                    getOverflowPolicy(),
+                    payload -> send(toText(payload, compact)),
+                    QuarkusWebSocket.this::coalesce,
+                    () -> {
+                        log.warn("{} is not keeping up, closing", session);
+                        session.close().subscribeAsCompletionStage();
+                    });
+        }
+
         @Override
         public void sendOrThrow(Object payload) {
-            sendOrLog(payload); // no difference for now
+            sendAsync(payload).toCompletableFuture().join();
         }
 
         @Override
         public void sendOrLog(Object payload) {
-            // NOTE: might be good to return the Uni<>, but then how do we do it from Spark?
-            session.sendText(toJsonString(payload))
-                    .await()
-                    .indefinitely();
+            sendAsync(payload).whenComplete((result, error) -> {
+                if (error != null) {
+                    log.warn("Sending message to {} failed", session, error);
+                }
+            });
+        }
+
+        @Override
+        public CompletionStage<Void> sendAsync(Object payload) {
+            return outbound.send(payload);
+        }
+
+        private CompletionStage<Void> send(String text) {
+            byte[] compressed = compression.compress(text, deflate, stats);
+            return ((compressed == null) ? session.sendText(text) : session.sendBinary(compressed))
+                    .subscribeAsCompletionStage();
+        }
+
+        /** Run the given task after the ones previously submitted for this client, whether they failed or not. */
+        private synchronized CompletionStage<Void> submit(Runnable task, Executor executor) {
+            lastInbound = lastInbound
+                    .exceptionally(error -> null)
+                    .thenRunAsync(task, executor);
+            return lastInbound;
+        }
+
+        @Override
+        public Optional<TransferStats.Snapshot> getTransferStats() {
+            return Optional.of(stats.get());
         }
 
         /**
@@ -109,31 +284,54 @@ public abstract class QuarkusWebSocket {
 
     @OnOpen
     @NonBlocking
-    public synchronized void onOpen(WebSocketConnection session) {
+    public void onOpen(WebSocketConnection session) {
         log.debug("New session opened");
-        clients.put(session, new SessionBroadcastTarget(session));
+        withGlobalLock(() -> clients.put(session, new SessionBroadcastTarget(session)));
     }
 
     @OnTextMessage
     @Blocking
-    public synchronized void onMessage(String message, WebSocketConnection session) throws IOException {
-        handleMessage(clients.get(session), message);
+    public Uni<Void> onMessage(String message, WebSocketConnection session) throws IOException {
+        var client = (SessionBroadcastTarget) clients.get(session);
+        if (getExecutionMode() == ExecutionMode.VIRTUAL_THREADS && client != null) {
+            return Uni.createFrom().completionStage(client.submit(() -> {
+                try {
+                    handleWithLock(client, message);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, virtualThreads));
+        }
+        handleWithLock(client, message);
+        return Uni.createFrom().voidItem();
+    }
+
+    private void handleWithLock(SessionBroadcastTarget client, String message) throws IOException {
+        Lock lock = (getConcurrencyMode() == ConcurrencyMode.PER_CONNECTION && client != null) ?
+                client.inbound :
+                globalLock;
+        lock.lock();
+        try {
+            handleMessage(client, message);
+        } finally {
+            lock.unlock();
+        }
     }
 
     protected abstract void handleMessage(BroadcastTarget client, String message) throws IOException;
 
     @OnClose
     @NonBlocking
-    public synchronized void onClose(WebSocketConnection session) {
+    public void onClose(WebSocketConnection session) {
         log.info("Session {} closing", session);
-        removeSession(session);
+        withGlobalLock(() -> removeSession(session));
     }
 
     @OnError
     @NonBlocking
-    public synchronized void onError(WebSocketConnection session, Throwable error) {
+    public void onError(WebSocketConnection session, Throwable error) {
         log.error("Session {} failed", session, error);
-        removeSession(session);
+        withGlobalLock(() -> removeSession(session));
     }
 
     private void removeSession(WebSocketConnection session) {
@@ -143,6 +341,22 @@ public abstract class QuarkusWebSocket {
         }
     }
 
+    /** Run the given task holding the global lock in {@link ConcurrencyMode#GLOBAL} mode. In
+     * {@link ConcurrencyMode#PER_CONNECTION} mode, run it directly, as the client collection and store are
+     * thread-safe. */
+    private void withGlobalLock(Runnable task) {
+        if (getConcurrencyMode() == ConcurrencyMode.GLOBAL) {
+            globalLock.lock();
+            try {
+                task.run();
+            } finally {
+                globalLock.unlock();
+            }
+        } else {
+            task.run();
+        }
+    }
+
     /** Broadcast customised information to all clients (e.g. filtering relevant/visible information to each).
      *
      * @param payload a function computing the payload to send to a given client.
@@ -151,7 +365,53 @@ public abstract class QuarkusWebSocket {
         clients.broadcast(payload);
     }
 
+    /** Serialise the given payload once for all recipients of a broadcast, in JSON and, if enabled, in the
+     * compact format. */
+    private EncodedPayload encode(Object payload) {
+        String compactText = (payload instanceof StampedEventList list) ?
+                getCompactFormat().map(format -> toCompactString(format, list)).orElse(null) :
+                null;
+        return new EncodedPayload(toJsonString(payload), payload, compactText);
+    }
+
+    private String toText(Object payload, boolean compact) {
+        if (payload instanceof EncodedPayload encoded) {
+            return encoded.text(compact);
+        }
+        String compactText = (compact && payload instanceof StampedEventList list) ?
+                getCompactFormat().map(format -> toCompactString(format, list)).orElse(null) :
+                null;
+        return (compactText == null) ? toJsonString(payload) : compactText;
+    }
+
+    /** Return the given list in compact format, or {@code null} if that fails, in which case JSON is used. */
+    private String toCompactString(CompactEventFormat format, StampedEventList list) {
+        try {
+            return format.encode(json, list);
+        } catch (JsonProcessingException e) {
+            log.error("Error encoding {} in compact format.", list, e);
+            return null;
+        }
+    }
+
+    private static String queryParameter(WebSocketConnection session, String name) {
+        String query = session.handshakeRequest().query();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : Splitter.on('&').split(query)) {
+            int equals = parameter.indexOf('=');
+            if (equals != -1 && URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8).equals(name)) {
+                return URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
     protected String toJsonString(Object object) {
+        if (object instanceof EncodedPayload encoded) {
+            return encoded.text();
+        }
         try {
             return json.writeValueAsString(object);
         } catch (JsonProcessingException e) {
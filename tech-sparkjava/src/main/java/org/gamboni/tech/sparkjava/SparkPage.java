@@ -1,9 +1,30 @@
 package org.gamboni.tech.sparkjava;
 
 import org.gamboni.tech.web.ui.AbstractPage;
+import org.gamboni.tech.web.ui.Html;
+import spark.Response;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 public abstract class SparkPage<T> extends AbstractPage<T> {
     protected SparkPage() {
-        super(new SparkScript());
+        this(false);
+    }
+
+    /** @param minified whether to {@link org.gamboni.tech.web.ui.Script#isMinified() minify} the script, for production. */
+    protected SparkPage(boolean minified) {
+        super(new SparkScript(minified));
+    }
+
+    /** Write the given page straight to the response, without building it as a {@code String}. Usage:
+     * {@code Spark.get(path, (req, res) -> page.stream(res, page.render(data)))}.
+     *
+     * @return an empty body, for Spark to append to what was already written.
+     */
+    public Object stream(Response res, Html html) throws IOException {
+        res.type("text/html; charset=utf-8");
+        html.render(res.raw().getOutputStream(), StandardCharsets.UTF_8);
+        return "";
     }
 }
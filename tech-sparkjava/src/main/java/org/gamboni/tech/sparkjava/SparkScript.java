@@ -5,9 +5,26 @@ import spark.Spark;
 
 public class SparkScript extends Script {
     protected SparkScript() {
+        this(false);
+    }
+
+    protected SparkScript(boolean minified) {
+        super(minified);
         Spark.get(getUrl(), (req, res) -> {
-            res.header("Content-Type", getMime());
-            return this.render();
+            Script.Rendered script = getRendered();
+            res.header("ETag", script.etag());
+            res.header("Cache-Control", script.cacheControl(req.queryParams(VERSION_PARAMETER)));
+            res.header("Vary", "Accept-Encoding");
+            if (script.matches(req.headers("If-None-Match"))) {
+                res.status(304);
+                return "";
+            }
+            res.type(getMime() + "; charset=utf-8");
+            if (Script.Rendered.acceptsGzip(req.headers("Accept-Encoding"))) {
+                // Spark compresses the body itself when this header is set
+                res.header("Content-Encoding", "gzip");
+            }
+            return script.utf8();
         });
     }
 }
@@ -1,5 +1,6 @@
 package org.gamboni.tech.sparkjava;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
 import lombok.AccessLevel;
@@ -14,12 +15,18 @@ import org.gamboni.tech.web.js.JsPersistentWebSocket;
 import org.gamboni.tech.web.ui.Page;
 import org.gamboni.tech.web.ws.BroadcastTarget;
 import org.gamboni.tech.web.ws.ClientCollection;
+import org.gamboni.tech.web.ws.EncodedPayload;
+import org.gamboni.tech.web.ws.FrameCompression;
+import org.gamboni.tech.web.ws.TransferStats;
 import spark.Spark;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -41,6 +48,12 @@ public abstract class SparkWebSocket {
     @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
     public class Client implements BroadcastTarget {
         private final Session session;
+        /** Whether this client requested {@link #getCompression() compression}. */
+        private final boolean deflate;
+        private final TransferStats stats = new TransferStats();
+        /** Jetty's blocking sends must not run concurrently on the same session (for instance a broadcast and the
+         * response to a message): they would fail or interleave frames. */
+        private final Lock sending = new ReentrantLock();
         /** (Final but contents is mutable) */
         private final List<Runnable> onClose = new ArrayList<>();
         private volatile boolean open = true;
@@ -51,7 +64,7 @@ public abstract class SparkWebSocket {
         @Override
         public void sendOrThrow(Object payload) {
             try {
-                session.getRemote().sendString(mapper.writeValueAsString(payload));
+                send(toText(payload));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -63,12 +76,31 @@ public abstract class SparkWebSocket {
         @Override
         public void sendOrLog(Object payload) {
             try {
-                session.getRemote().sendString(mapper.writeValueAsString(payload));
+                send(toText(payload));
             } catch (IOException e) {
                 log.warn("Sending message to {} failed", session, e);
             }
         }
 
+        private void send(String text) throws IOException {
+            byte[] compressed = compression.compress(text, deflate, stats);
+            sending.lock();
+            try {
+                if (compressed == null) {
+                    session.getRemote().sendString(text);
+                } else {
+                    session.getRemote().sendBytes(ByteBuffer.wrap(compressed));
+                }
+            } finally {
+                sending.unlock();
+            }
+        }
+
+        @Override
+        public Optional<TransferStats.Snapshot> getTransferStats() {
+            return Optional.of(stats.get());
+        }
+
         public void markClosed() {
             synchronized (this) {
                 Preconditions.checkState(open); // sanity check
@@ -112,8 +144,9 @@ public abstract class SparkWebSocket {
         }
     }
 
-    private final ClientCollection<Session> clients = new ClientCollection<>();
+    private final ClientCollection<Session> clients = new ClientCollection<>(this::encode);
     private final ObjectMapper mapper;
+    private final FrameCompression compression;
 
     public String getPath() {
         return JsPersistentWebSocket.DEFAULT_URL;
@@ -124,13 +157,29 @@ public abstract class SparkWebSocket {
     }
 
     protected SparkWebSocket(Supplier<ObjectMapper> mapping) {
+        this(mapping, FrameCompression.DISABLED);
+    }
+
+    /**
+     * @param compression how to compress messages for clients requesting it. Jetty compresses all messages with
+     *                    {@code permessage-deflate} when the browser supports it, so this mostly helps limiting
+     *                    compression to large messages where that extension is not available or disabled.
+     */
+    protected SparkWebSocket(Supplier<ObjectMapper> mapping, FrameCompression compression) {
         this.mapper = mapping.get();
+        this.compression = compression;
+    }
+
+    /** How messages are compressed for clients requesting it. */
+    protected FrameCompression getCompression() {
+        return compression;
     }
 
     @OnWebSocketConnect
-    public synchronized void onConnect(Session session) throws Exception {
+    public void onConnect(Session session) throws Exception {
         log.info("New connection {}", session);
-        clients.put(session, new Client(session));
+        clients.put(session, new Client(session, compression.isEnabled() &&
+                session.getUpgradeRequest().getParameterMap().containsKey(FrameCompression.PARAMETER)));
     }
 
     protected abstract boolean handleMessage(BroadcastTarget client, String message);
@@ -147,7 +196,7 @@ public abstract class SparkWebSocket {
     }
 
     @OnWebSocketClose
-    public synchronized void onClose(Session session, int statusCode, String reason) {
+    public void onClose(Session session, int statusCode, String reason) {
         clients.remove(session); // TODO then remove from store like we do with Quarkus
         log.info("Connection {} terminated: {} {} ", session, statusCode, reason);
     }
@@ -156,6 +205,22 @@ public abstract class SparkWebSocket {
         clients.broadcast(payload);
     }
 
+    /** Serialise the given payload once for all recipients of a broadcast. If that fails, the payload is returned
+     * unchanged, and serialisation errors get reported for each client as usual. */
+    private Object encode(Object payload) {
+        try {
+            return new EncodedPayload(mapper.writeValueAsString(payload), payload);
+        } catch (JsonProcessingException e) {
+            return payload;
+        }
+    }
+
+    private String toText(Object payload) throws JsonProcessingException {
+        return (payload instanceof EncodedPayload encoded) ?
+                encoded.text() :
+                mapper.writeValueAsString(payload);
+    }
+
     /** Broadcast customised information to all clients (e.g. filtering relevant/visible information to each).
      *
      * @param payload a function computing the payload to send to a given client.
@@ -166,12 +231,17 @@ public abstract class SparkWebSocket {
 
     public <T> JsPersistentWebSocket createClient(
             JsPersistentWebSocket.Handler handler) {
-        JavaScript.JsGlobal keepAliveHandle = new JavaScript.JsGlobal("keepAliveHandle");
-        JavaScript.Fun sendKeepAlive = new JavaScript.Fun("sendKeepAlive");
         return new JsPersistentWebSocket(getPath(), handler) {
+            private JavaScript.JsGlobal keepAliveHandle = new JavaScript.JsGlobal("keepAliveHandle");
+            private JavaScript.Fun sendKeepAlive = new JavaScript.Fun("sendKeepAlive");
 
             @Override
             public JsPersistentWebSocket.Added addTo(Page<?> page) {
+                keepAliveHandle = new JavaScript.JsGlobal(page.freshGlobal("keepAliveHandle"));
+                sendKeepAlive = new JavaScript.Fun(page.freshGlobal("sendKeepAlive"));
+
+                // super.addTo() names the socket, which submitIfOpen() refers to
+                var added = super.addTo(page);
                 page.addToScript(
                         keepAliveHandle.declare(_null),
                         sendKeepAlive.declare(keepAliveHandle.set(
@@ -181,7 +251,7 @@ public abstract class SparkWebSocket {
                                         KEEPALIVE_MILLIS)
                         )));
 
-                return super.addTo(page);
+                return added;
             }
 
             @Override
@@ -4,6 +4,7 @@ import com.google.auto.service.AutoService;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
 import lombok.RequiredArgsConstructor;
 import org.gamboni.tech.misc.Unit;
 import org.gamboni.tech.web.ui.value.DateValue;
@@ -17,6 +18,8 @@ import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
 import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.RecordComponentElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
@@ -29,6 +32,9 @@ import javax.tools.JavaFileObject;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +48,7 @@ import java.util.function.UnaryOperator;
 
 import static com.google.common.base.CaseFormat.LOWER_CAMEL;
 import static com.google.common.base.CaseFormat.UPPER_CAMEL;
+import static com.google.common.base.CaseFormat.UPPER_UNDERSCORE;
 import static javax.lang.model.SourceVersion.RELEASE_17;
 import static javax.tools.Diagnostic.Kind.ERROR;
 import static javax.tools.Diagnostic.Kind.NOTE;
@@ -52,11 +59,19 @@ import static org.gamboni.tech.misc.Unit.UNIT;
 @SupportedSourceVersion(RELEASE_17)
 @AutoService(Processor.class)
 public class JSProcessor extends AbstractProcessor {
+    /** Maps package names to the records for which a serializer was generated, and whose module was not written
+     * yet. Records may be found over several rounds, so modules are written in the first round finding none. */
+    private final Multimap<String, String> serializers = TreeMultimap.create();
+    /** Packages whose {@code JsSerializerModule} was written. */
+    private final Set<String> serializerModules = new HashSet<>();
+
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment) {
         // maps interface names to implementing types which have a @JS annotation
         Multimap<String, String> subtypes = HashMultimap.create();
         Set<String> incompleteTypes = new HashSet<>();
+        int pendingSerializers = serializers.size();
+        boolean jackson = processingEnv.getElementUtils().getTypeElement(JACKSON_SERIALIZER) != null;
         for (var annotation : annotations) {
             Messager messager = processingEnv.getMessager();
             for (Element elt : roundEnvironment.getElementsAnnotatedWith(annotation)) {
@@ -76,6 +91,19 @@ public class JSProcessor extends AbstractProcessor {
                             incompleteTypes.add(e.getQualifiedName().toString());
                         }
 
+                        if (jackson && e.getKind() == ElementKind.RECORD && !hasJacksonAnnotations(e)) {
+                            String name = e.getQualifiedName().toString();
+                            String packageName = name.substring(0, name.lastIndexOf('.'));
+                            if (serializerModules.contains(packageName)) {
+                                processingEnv.getMessager().printMessage(NOTE, "Not generating a serializer " +
+                                        "for " + name + " because the serializer module of its package was " +
+                                        "written in an earlier round", e);
+                            } else {
+                                emitSerializer(e);
+                                serializers.put(packageName, name);
+                            }
+                        }
+
                         return null;
                     }
                 }, UNIT);
@@ -111,9 +139,189 @@ public class JSProcessor extends AbstractProcessor {
                 }));
             });
         }
+        if (serializers.size() == pendingSerializers) {
+            serializers.asMap().forEach(this::emitSerializerModule);
+            serializerModules.addAll(serializers.keySet());
+            serializers.clear();
+        }
         return true;
     }
 
+    private static final String JACKSON_SERIALIZER = "com.fasterxml.jackson.databind.ser.std.StdSerializer";
+
+    /** Whether Jackson annotations may customise the serialisation of the given record, in which case it is left to
+     * Jackson's reflective serializer. */
+    private static boolean hasJacksonAnnotations(TypeElement type) {
+        List<Element> annotated = new ArrayList<>();
+        annotated.add(type);
+        for (Element member : type.getEnclosedElements()) {
+            annotated.add(member);
+            if (member instanceof ExecutableElement executable) {
+                annotated.addAll(executable.getParameters());
+            }
+        }
+        return annotated.stream()
+                .flatMap(element -> element.getAnnotationMirrors().stream())
+                .anyMatch(annotation -> getFullyQualifiedName(annotation.getAnnotationType())
+                        .map(name -> name.startsWith("com.fasterxml.jackson."))
+                        .orElse(false));
+    }
+
+    /** Generate a Jackson serializer writing the components of the given record directly, instead of going through
+     * bean introspection. Like Jackson, components are written in declaration order, and {@code @type} tags are
+     * added by the type serializer when the record is serialised as a polymorphic type. This only matches Jackson's
+     * output with the default naming and inclusion settings, which the generated module checks before using it.
+     */
+    private void emitSerializer(TypeElement record) {
+        emitFile(n -> n + "Serializer", record.getQualifiedName().toString(), (out, recordType, serializerType) -> {
+            String valueType = record.getTypeParameters().isEmpty() ? recordType :
+                    recordType + "<" + String.join(", ", Collections.nCopies(record.getTypeParameters().size(), "?")) + ">";
+            String generator = out.typeName("com.fasterxml.jackson.core.JsonGenerator");
+            String provider = out.typeName("com.fasterxml.jackson.databind.SerializerProvider");
+            String exception = out.typeName(IOException.class);
+
+            out.write("public class " + serializerType + " extends " + out.typeName(JACKSON_SERIALIZER) +
+                    "<" + valueType + "> {\n");
+            for (var attribute : record.getRecordComponents()) {
+                if (isParameterised(attribute.asType())) {
+                    String javaType = out.typeName("com.fasterxml.jackson.databind.JavaType");
+                    out.write("  private static final " + javaType + " " + typeConstant(attribute) + " = " +
+                            out.typeName("com.fasterxml.jackson.databind.type.TypeFactory") +
+                            ".defaultInstance().constructType(new " +
+                            out.typeName("com.fasterxml.jackson.core.type.TypeReference") + "<" +
+                            attribute.asType() + ">() {});\n");
+                }
+            }
+            out.write("\n" +
+                    "  public " + serializerType + "() {\n" +
+                    "    super(" + recordType + ".class, false);\n" +
+                    "  }\n" +
+                    "\n" +
+                    "  @Override\n" +
+                    "  public void serialize(" + valueType + " value, " + generator + " gen, " + provider +
+                    " provider) throws " + exception + " {\n" +
+                    "    gen.writeStartObject(value);\n" +
+                    "    writeFields(value, gen, provider);\n" +
+                    "    gen.writeEndObject();\n" +
+                    "  }\n" +
+                    "\n" +
+                    "  @Override\n" +
+                    "  public void serializeWithType(" + valueType + " value, " + generator + " gen, " + provider +
+                    " provider, " + out.typeName("com.fasterxml.jackson.databind.jsontype.TypeSerializer") +
+                    " typeSer) throws " + exception + " {\n" +
+                    "    " + out.typeName("com.fasterxml.jackson.core.type.WritableTypeId") +
+                    " typeId = typeSer.writeTypePrefix(gen, typeSer.typeId(value, " +
+                    out.typeName("com.fasterxml.jackson.core.JsonToken") + ".START_OBJECT));\n" +
+                    "    writeFields(value, gen, provider);\n" +
+                    "    typeSer.writeTypeSuffix(gen, typeId);\n" +
+                    "  }\n" +
+                    "\n" +
+                    "  private static void writeFields(" + valueType + " value, " + generator + " gen, " + provider +
+                    " provider) throws " + exception + " {\n");
+            for (var attribute : record.getRecordComponents()) {
+                out.write("    " + writeField(attribute) + "\n");
+            }
+            out.write("  }\n" +
+                    "}");
+        });
+    }
+
+    /** Statement(s) writing the given component of {@code value} as a field of the current object. */
+    private static String writeField(RecordComponentElement attribute) {
+        String name = "\"" + attribute.getSimpleName() + "\"";
+        String value = "value." + attribute.getSimpleName() + "()";
+        TypeMirror type = attribute.asType();
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "gen.writeBooleanField(" + name + ", " + value + ");";
+            case BYTE: case SHORT: case INT: case LONG: case FLOAT: case DOUBLE:
+                return "gen.writeNumberField(" + name + ", " + value + ");";
+            case CHAR:
+                return "gen.writeStringField(" + name + ", String.valueOf(" + value + "));";
+            default:
+                break;
+        }
+        String typeName = getFullyQualifiedName(type).orElse("");
+        if (typeName.equals(String.class.getName())) {
+            // writes null values as null
+            return "gen.writeStringField(" + name + ", " + value + ");";
+        } else if (Set.of(Long.class.getName(), Integer.class.getName(), Double.class.getName()).contains(typeName)) {
+            return nullSafe(name, value, "gen.writeNumberField(" + name + ", " + value + ");");
+        } else if (isParameterised(type)) {
+            // the declared type is needed for the type information of elements, e.g. Collection<? extends Event>
+            return "gen.writeFieldName(" + name + ");\n    " +
+                    nullSafe(null, value, "provider.findTypedValueSerializer(" + typeConstant(attribute) +
+                            ", true, null).serialize(" + value + ", gen, provider);");
+        } else {
+            return "provider.defaultSerializeField(" + name + ", " + value + ", gen);";
+        }
+    }
+
+    private static String nullSafe(String name, String value, String statement) {
+        return "if (" + value + " == null) {\n" +
+                "      " + ((name == null) ? "provider.defaultSerializeNull(gen);" : "gen.writeNullField(" + name + ");") + "\n" +
+                "    } else {\n" +
+                "      " + statement + "\n" +
+                "    }";
+    }
+
+    private static boolean isParameterised(TypeMirror type) {
+        return getDeclaredType(type).map(t -> !t.getTypeArguments().isEmpty()).orElse(false);
+    }
+
+    private static String typeConstant(RecordComponentElement attribute) {
+        return LOWER_CAMEL.to(UPPER_UNDERSCORE, attribute.getSimpleName().toString()) + "_TYPE";
+    }
+
+    /** Generate a Jackson module registering the serializers generated for the records of a package. */
+    private void emitSerializerModule(String packageName, Collection<String> records) {
+        emitFile(n -> n, packageName + ".JsSerializerModule", (out, __, moduleType) -> {
+            String config = out.typeName("com.fasterxml.jackson.databind.SerializationConfig");
+            String serializer = out.typeName("com.fasterxml.jackson.databind.JsonSerializer");
+            String include = out.typeName("com.fasterxml.jackson.annotation.JsonInclude") + ".Include";
+            out.write("/** Registers serializers for the {@code @JS} records of this package. They are only used with the\n" +
+                    " * default naming and inclusion settings, other settings being left to Jackson's own serializers. */\n" +
+                    "public class " + moduleType + " extends " +
+                    out.typeName("com.fasterxml.jackson.databind.module.SimpleModule") + " {\n" +
+                    "  private final " + out.typeName(Map.class) + "<Class<?>, " + serializer + "<?>> serializers = new " +
+                    out.typeName(HashMap.class) + "<>();\n" +
+                    "\n" +
+                    "  public " + moduleType + "() {\n" +
+                    "    super(" + moduleType + ".class.getName());\n");
+            for (String record : records) {
+                String simpleName = record.substring(record.lastIndexOf('.') + 1);
+                out.write("    serializers.put(" + simpleName + ".class, new " + simpleName + "Serializer());\n");
+            }
+            out.write("  }\n" +
+                    "\n" +
+                    "  @Override\n" +
+                    "  public void setupModule(SetupContext context) {\n" +
+                    "    super.setupModule(context);\n" +
+                    "    context.addSerializers(new " + out.typeName("com.fasterxml.jackson.databind.ser.Serializers") +
+                    ".Base() {\n" +
+                    "      @Override\n" +
+                    "      public " + serializer + "<?> findSerializer(" + config + " config, " +
+                    out.typeName("com.fasterxml.jackson.databind.JavaType") + " type, " +
+                    out.typeName("com.fasterxml.jackson.databind.BeanDescription") + " beanDesc) {\n" +
+                    "        " + serializer + "<?> serializer = serializers.get(type.getRawClass());\n" +
+                    "        return (serializer != null && isDefault(config, type.getRawClass())) ? serializer : null;\n" +
+                    "      }\n" +
+                    "    });\n" +
+                    "  }\n" +
+                    "\n" +
+                    "  /** Whether the generated serializers write the same as Jackson's with the given configuration. */\n" +
+                    "  private static boolean isDefault(" + config + " config, Class<?> type) {\n" +
+                    "    " + include + " inclusion = config.getDefaultPropertyInclusion(type).getValueInclusion();\n" +
+                    "    return config.getPropertyNamingStrategy() == null &&\n" +
+                    "        !config.isEnabled(" + out.typeName("com.fasterxml.jackson.databind.MapperFeature") +
+                    ".SORT_PROPERTIES_ALPHABETICALLY) &&\n" +
+                    "        config.findMixInClassFor(type) == null &&\n" +
+                    "        (inclusion == " + include + ".ALWAYS || inclusion == " + include + ".USE_DEFAULTS);\n" +
+                    "  }\n" +
+                    "}");
+        });
+    }
+
     private record EmitOutcome(boolean isIncomplete) {}
 
     /** Whether the given type is part of a Jackson type hierarchy. Currently only supports types
@@ -290,6 +498,14 @@ public class JSProcessor extends AbstractProcessor {
                                 
                                 """);
 
+                        out.write("  @Override\n" +
+                                "  public void formatTo(").write(JavaScript.class).write("""
+                                .Scope scope, StringBuilder out) {
+                                    self.formatTo(scope, out);
+                                  }
+                                
+                                """);
+
                         out.write("  @Override\n" +
                                 "  public ").write(JavaScript.class).write("""
                                 .Precedence getPrecedence() {
@@ -6,22 +6,25 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import lombok.RequiredArgsConstructor;
 import org.gamboni.tech.web.ui.Css;
+import org.gamboni.tech.web.ui.Escaper;
 import org.gamboni.tech.web.ui.ScriptMember;
 
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collector;
 import java.util.stream.Stream;
 
-import static java.util.stream.Collectors.joining;
 import static lombok.AccessLevel.PRIVATE;
 import static lombok.AccessLevel.PROTECTED;
 import static org.gamboni.tech.web.js.JavaScript.Precedence.ADDITION;
@@ -51,9 +54,14 @@ public abstract class JavaScript {
 
         @Override
         public String format(Scope s) {
-            return "'" + text.replace("\\", "\\\\")
-                    .replace("'", "\\'")
-                    + "'";
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append('\'');
+            Escaper.JS_STRING.escapeTo(text, out);
+            out.append('\'');
         }
 
         @Override
@@ -82,6 +90,11 @@ public abstract class JavaScript {
             return value.toString();
         }
 
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append(value);
+        }
+
         @Override
         public Precedence getPrecedence() {
             return ATOM;
@@ -97,6 +110,58 @@ public abstract class JavaScript {
         }
     }
 
+    /** A strict equality between some expression and a string or number literal, as returned by
+     * {@link #asLiteralEquality(JsExpression)}.
+     *
+     * @param operand the non-literal side of the equality.
+     * @param literal the literal side of the equality.
+     */
+    public record LiteralEquality(JsExpression operand, JsExpression literal) {}
+
+    /** If the given expression is of the form {@code x === literal} (or {@code literal === x}) where {@code literal}
+     * is a string or number, return its two sides. */
+    public static Optional<LiteralEquality> asLiteralEquality(JsExpression expression) {
+        if (expression instanceof JsBinary binary && binary.op().equals(" === ")) {
+            if (isKeyLiteral(binary.rhs())) {
+                return Optional.of(new LiteralEquality(binary.lhs(), binary.rhs()));
+            } else if (isKeyLiteral(binary.lhs())) {
+                return Optional.of(new LiteralEquality(binary.rhs(), binary.lhs()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /** Whether the given expression reads a property of {@code object} directly, as in {@code object.x} or
+     * {@code object['x']}. Evaluating such an expression cannot throw as long as {@code object} is an object. */
+    public static boolean isPropertyOf(JsExpression expression, JsExpression object) {
+        expression = undecorate(expression);
+        if (expression instanceof JsDotExpression dot) {
+            return undecorate(dot.lhs()) == object;
+        } else if (expression instanceof JsArrayAccess access) {
+            return undecorate(access.array()) == object && isKeyLiteral(access.index());
+        } else {
+            return false;
+        }
+    }
+
+    private static JsExpression undecorate(JsExpression expression) {
+        while (expression instanceof JsExpressionDecorator decorator) {
+            expression = decorator.delegate;
+        }
+        return expression;
+    }
+
+    private static boolean isKeyLiteral(JsExpression expression) {
+        return expression instanceof JsStringLiteral ||
+                (expression instanceof JsLiteral l && l.value() instanceof Number);
+    }
+
+    /** Whether the given expression is the given boolean literal. Used to fold {@code true && x} into {@code x}, and
+     * {@code false || x} into {@code x}. */
+    private static boolean isLiteral(JsExpression expression, boolean value) {
+        return expression instanceof JsLiteral l && l.value().equals(value);
+    }
+
     public static JsExpression literal(Number number) {
         return new JsLiteral(number);
     }
@@ -137,7 +202,11 @@ public abstract class JavaScript {
 
     public record JsGlobal(String name) implements JsExpression {
         public ScriptMember declare(JsExpression initialValue) {
-            return () -> name +" = "+ initialValue.format(Scope.empty()) +";\n";
+            return member(out -> {
+                out.append(name).append(" = ");
+                initialValue.formatTo(Scope.empty(), out);
+                out.append(";\n");
+            });
         }
         public ScriptMember declare(long initialValue) {
             return declare(literal(initialValue));
@@ -156,6 +225,11 @@ public abstract class JavaScript {
             return name;
         }
 
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append(name);
+        }
+
         @Override
         public Precedence getPrecedence() {
             return ATOM;
@@ -172,10 +246,11 @@ public abstract class JavaScript {
 
     public record Fun(String name) {
         public ScriptMember declare(JsFragment body) {
-            return () -> "function " + name + "() {\n" +
-                    JsStatement.of(body)
-                            .format(Scope.empty()) + "\n" +
-                    "}";
+            return member(out -> {
+                out.append("function ").append(name).append("() {\n");
+                JsStatement.of(body).formatTo(Scope.empty(), out);
+                out.append("\n}");
+            });
         }
 
         public JsExpression invoke() {
@@ -187,10 +262,11 @@ public abstract class JavaScript {
 
         public ScriptMember declare(Function<JsExpression,JsFragment> body) {
             String arg = "a";
-            return () -> "function " + name + "(" + arg + ") {\n" +
-                        JsStatement.of(body.apply(new JsAtom(arg)))
-                                .format(Scope.empty()) + "\n" +
-                        "}";
+            return member(out -> {
+                out.append("function ").append(name).append("(").append(arg).append(") {\n");
+                JsStatement.of(body.apply(new JsAtom(arg))).formatTo(Scope.empty(), out);
+                out.append("\n}");
+            });
         }
 
         public JsExpression invoke(JsExpression value) {
@@ -202,10 +278,11 @@ public abstract class JavaScript {
         public ScriptMember declare(BiFunction<JsExpression, JsExpression, JsFragment> body) {
             String arg1 = "a";
             String arg2 = "b";
-            return () -> "function " + name + "(" + arg1 +", "+ arg2 + ") {\n" +
-                    JsStatement.of(body.apply(new JsAtom(arg1), new JsAtom(arg2)))
-                            .format(Scope.empty())+ "\n" +
-                    "}";
+            return member(out -> {
+                out.append("function ").append(name).append("(").append(arg1).append(", ").append(arg2).append(") {\n");
+                JsStatement.of(body.apply(new JsAtom(arg1), new JsAtom(arg2))).formatTo(Scope.empty(), out);
+                out.append("\n}");
+            });
         }
 
         public JsExpression invoke(JsExpression value1, JsExpression value2) {
@@ -223,13 +300,13 @@ public abstract class JavaScript {
             return parameter;
         }
         public ScriptMember declare(Supplier<JsFragment> body) {
-            return () -> {
+            return member(out -> {
                 // to support adding parameters after declaration, create the map at actual render time.
-                return "function " + name + "(" +
-                        Joiner.on(", ").join(parameters) + ") {\n" +
-                    JsStatement.of(body.get())
-                            .format(Scope.empty())+ "\n" +
-                    "}";};
+                out.append("function ").append(name).append("(");
+                Joiner.on(", ").appendTo(out, parameters).append(") {\n");
+                JsStatement.of(body.get()).formatTo(Scope.empty(), out);
+                out.append("\n}");
+            });
         }
 
         public JsExpression invoke(Map<JsExpression, JsExpression> paramValues) {
@@ -255,6 +332,9 @@ public abstract class JavaScript {
         JsExpression _undefined = new JsAtom("undefined");
 
         default JsExpression plus(JsExpression that) {
+            if (this instanceof JsStringLiteral l && that instanceof JsStringLiteral r) {
+                return literal(l.text() + r.text());
+            }
             return new JsBinary(ADDITION,
                     this, ADDITION, "+", that, ADDITION);
         }
@@ -313,6 +393,11 @@ public abstract class JavaScript {
             return new JsBinary(ASSIGNMENT, this, ADDITION, " === ", value, ADDITION);
         }
 
+        /** The {@code instanceof} operator. */
+        default JsExpression isInstanceOf(JsExpression type) {
+            return new JsBinary(ASSIGNMENT, this, ADDITION, " instanceof ", type, ADDITION);
+        }
+
         default JsExpression eq(String value) {
             return this.eq(literal(value));
         }
@@ -328,6 +413,9 @@ public abstract class JavaScript {
 
         /** The logical AND operator: {@code this && that}. */
         default JsExpression and(JsExpression rhs) {
+            if (isLiteral(this, true)) {
+                return rhs;
+            }
             return new JsBinary(CONJUNCTION,
                     this, CONJUNCTION,
                     " && ",
@@ -336,6 +424,9 @@ public abstract class JavaScript {
 
         /** The logical OR operator: {@code this || that}. */
         default JsExpression or(JsExpression rhs) {
+            if (isLiteral(this, false)) {
+                return rhs;
+            }
             return new JsBinary(DISJUNCTION,
                     this, DISJUNCTION,
                     " || ",
@@ -348,6 +439,9 @@ public abstract class JavaScript {
 
         /** The logical negation {@code !this}. */
         default JsExpression not() {
+            if (this instanceof JsLiteral l && l.value() instanceof Boolean b) {
+                return literal(!b);
+            }
             return new JsUnary(ATOM, "!", this, ATOM);
         }
 
@@ -365,6 +459,18 @@ public abstract class JavaScript {
             }
         }
 
+        /** Append this to {@code out}, making sure the resulting expression has at most the given target precedence,
+         * adding brackets if needed. */
+        default void formatTo(Scope s, Precedence targetPrecedence, StringBuilder out) {
+            if (this.getPrecedence().compareTo(targetPrecedence) > 0) {
+                out.append('(');
+                this.formatTo(s, out);
+                out.append(')');
+            } else {
+                this.formatTo(s, out);
+            }
+        }
+
         Precedence getPrecedence();
     }
 
@@ -373,6 +479,11 @@ public abstract class JavaScript {
         public String format(Scope s) {
             return code;
         }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append(code);
+        }
         @Override
         public String toString() {
             return code;
@@ -412,13 +523,24 @@ public abstract class JavaScript {
         public String format(Scope s) {
             return delegate.format(s);
         }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            delegate.formatTo(s, out);
+        }
     }
 
     private record JsDotExpression(JsExpression lhs, String attr) implements JsExpression {
 
         @Override
         public String format(Scope s) {
-            return lhs.format(s, ATOM) +"."+ attr;
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            lhs.formatTo(s, ATOM, out);
+            out.append('.').append(attr);
         }
 
         @Override
@@ -450,7 +572,14 @@ public abstract class JavaScript {
 
         @Override
         public String format(Scope s) {
-            return lhs.format(s, lPrecedence) + op + rhs.format(s, rPrecedence);
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            lhs.formatTo(s, lPrecedence, out);
+            out.append(op);
+            rhs.formatTo(s, rPrecedence, out);
         }
 
         @Override
@@ -476,7 +605,13 @@ public abstract class JavaScript {
 
         @Override
         public String format(Scope s) {
-            return operator + argument.format(s, argPrecedence);
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append(operator);
+            argument.formatTo(s, argPrecedence, out);
         }
 
         @Override
@@ -493,10 +628,17 @@ public abstract class JavaScript {
     private record JsTernary(JsExpression cond, JsExpression ifTrue, JsExpression ifFalse) implements JsExpression {
         @Override
         public String format(Scope s) {
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
             // TODO add tests for this case in particular checking behaviour with nested ternaries which likely won't work as-is
-            return cond.format(s, Precedence.DISJUNCTION) +"? "+
-                    ifTrue.format(s, Precedence.DISJUNCTION) +" : "+
-                    ifFalse.format(s, Precedence.DISJUNCTION);
+            cond.formatTo(s, Precedence.DISJUNCTION, out);
+            out.append("? ");
+            ifTrue.formatTo(s, Precedence.DISJUNCTION, out);
+            out.append(" : ");
+            ifFalse.formatTo(s, Precedence.DISJUNCTION, out);
         }
 
         @Override
@@ -535,14 +677,14 @@ public abstract class JavaScript {
 
         @Override
         public String format(Scope s) {
-            String comma = "";
-            var result = new StringBuilder(object.format(s, ATOM))
-                    .append(".").append(name).append("(");
-            for (var arg : args) {
-                result.append(comma).append(arg.format(s));
-                comma = ", ";
-            }
-            return result.append(")").toString();
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            object.formatTo(s, ATOM, out);
+            out.append(".").append(name);
+            formatArguments(s, args, out);
         }
         @Override
         public Precedence getPrecedence() {
@@ -564,7 +706,15 @@ public abstract class JavaScript {
 
         @Override
         public String format(Scope s) {
-            return array.format(s, ATOM) +"["+ index.format(s) +"]";
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            array.formatTo(s, ATOM, out);
+            out.append('[');
+            index.formatTo(s, out);
+            out.append(']');
         }
 
         @Override
@@ -594,13 +744,13 @@ public abstract class JavaScript {
 
         @Override
         public String format(Scope s) {
-            String comma = "";
-            var result = new StringBuilder(name.format(s, ATOM)).append("(");
-            for (var arg : args) {
-                result.append(comma).append(arg.format(s));
-                comma = ", ";
-            }
-            return result.append(")").toString();
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            name.formatTo(s, ATOM, out);
+            formatArguments(s, args, out);
         }
         @Override
         public Precedence getPrecedence() {
@@ -618,6 +768,43 @@ public abstract class JavaScript {
         }
     }
 
+    /** Append the given function arguments, in brackets. */
+    private static void formatArguments(Scope s, List<JsExpression> args, StringBuilder out) {
+        out.append('(');
+        String comma = "";
+        for (var arg : args) {
+            out.append(comma);
+            arg.formatTo(s, out);
+            comma = ", ";
+        }
+        out.append(')');
+    }
+
+    /** Implementation of {@link JsFragment#format(Scope)} for fragments implementing
+     * {@link JsFragment#formatTo(Scope, StringBuilder)}. */
+    private static String formatToString(JsFragment fragment, Scope s) {
+        var out = new StringBuilder();
+        fragment.formatTo(s, out);
+        return out.toString();
+    }
+
+    /** A script member written by the given code. */
+    private static ScriptMember member(Consumer<StringBuilder> writer) {
+        return new ScriptMember() {
+            @Override
+            public String render() {
+                var out = new StringBuilder();
+                writer.accept(out);
+                return out.toString();
+            }
+
+            @Override
+            public void renderTo(StringBuilder out) {
+                writer.accept(out);
+            }
+        };
+    }
+
     private static List<Symbol> getFreeSymbols(JsFragment first, JsFragment second) {
         return union(
                 first.getFreeSymbols(),
@@ -770,10 +957,14 @@ public abstract class JavaScript {
 
                 @Override
                 public String format(Scope s) {
-                    return statements.stream()
-                            .map(JsStatement::of)
-                            .map(stm -> stm.format(s))
-                            .collect(joining());
+                    return formatToString(this, s);
+                }
+
+                @Override
+                public void formatTo(Scope s, StringBuilder out) {
+                    for (var statement : statements) {
+                        JsStatement.of(statement).formatTo(s, out);
+                    }
                 }
             };
         }
@@ -790,10 +981,17 @@ public abstract class JavaScript {
         return new JsStatementSequence() {
             @Override
             public String format(Scope s) {
+                return formatToString(this, s);
+            }
+
+            @Override
+            public void formatTo(Scope s, StringBuilder out) {
                 String var = s.freshVariableName();
 
-                return "let " + var + " = " + value.format(s) + ";" +
-                        body.format(s.withSymbolValue(symbol, new JsAtom(var)));
+                out.append("let ").append(var).append(" = ");
+                value.formatTo(s, out);
+                out.append(';');
+                body.formatTo(s.withSymbolValue(symbol, new JsAtom(var)), out);
             }
 
             @Override
@@ -821,16 +1019,26 @@ public abstract class JavaScript {
     private record JsLambda(List<JsAtom> parameters, JsFragment body) implements JsExpression {
         @Override
         public String format(Scope s) {
-            String signature = "(" +
-                    parameters.stream()
-                            .map(p -> p.format(s))
-                            .collect(joining(", "))+ ") => ";
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append('(');
+            Joiner.on(", ").appendTo(out, parameters).append(") => ");
             if (body instanceof JsStatement st) {
                 // always put braces. For instance if statements do not generate blocks
                 // when called with formatAsBlock but braces are needed for a lambda...
-                return signature + "{" + st.format(s) +"}";
+                out.append('{');
+                st.formatTo(s, out);
+                out.append('}');
+            } else if (body instanceof JsObjectLiteral) {
+                // without parentheses the braces would be taken for a block
+                out.append('(');
+                body.formatTo(s, out);
+                out.append(')');
             } else { // JsExpression
-                return signature + body.format(s);
+                body.formatTo(s, out);
             }
         }
 
@@ -870,6 +1078,25 @@ public abstract class JavaScript {
 
     public static JsExpression newDate(JsExpression value) { return new JsFunCall("new Date", value); }
 
+    public static final JsExpression Promise = new JsAtom("Promise");
+
+    public static final JsExpression Blob = new JsAtom("Blob");
+
+    /** Construct a fetch {@code Response}, which is a convenient way of reading a stream or blob as text. */
+    public static JsExpression newResponse(JsExpression body) {
+        return new JsFunCall("new Response", body);
+    }
+
+    /** Construct a {@code DecompressionStream} for the given format, e.g. {@code "deflate"}. */
+    public static JsExpression newDecompressionStream(String format) {
+        return new JsFunCall("new DecompressionStream", literal(format));
+    }
+
+    /** Construct a JavaScript {@code Map} from an array of {@code [key, value]} arrays. */
+    public static JsExpression newMap(JsExpression entries) {
+        return new JsFunCall("new Map", entries);
+    }
+
     public static JsExpression jsonParse(JsExpression text) {
         return new JsFunCall("JSON.parse", text);
     }
@@ -917,9 +1144,16 @@ public abstract class JavaScript {
         return new JsStatement() {
             @Override
             public String format(Scope s) {
+                return formatToString(this, s);
+            }
+
+            @Override
+            public void formatTo(Scope s, StringBuilder out) {
                 String var = s.freshVariableName();
-                return "for (const " + var +" of " + array.format(s) + ") " +
-                        JsStatement.of(bodyFragment).formatAsBlock(s.withSymbolValue(item, new JsAtom(var)));
+                out.append("for (const ").append(var).append(" of ");
+                array.formatTo(s, out);
+                out.append(") ");
+                JsStatement.of(bodyFragment).formatAsBlockTo(s.withSymbolValue(item, new JsAtom(var)), out);
             }
 
             @Override
@@ -936,6 +1170,13 @@ public abstract class JavaScript {
     public interface JsFragment {
         String format(Scope s);
 
+        /** Append this fragment to {@code out}. Fragments made of other fragments should override this method, so that
+         * a whole script is written into a single buffer instead of copying the code of each fragment into its parent.
+         * The default implementation appends {@link #format(Scope)}. */
+        default void formatTo(Scope s, StringBuilder out) {
+            out.append(format(s));
+        }
+
         List<Symbol> getFreeSymbols(); // TODO should use Sets instead
     }
 
@@ -947,7 +1188,13 @@ public abstract class JavaScript {
                 return new JsStatement() {
                     @Override
                     public String format(Scope s) {
-                        return expr.format(s) +";";
+                        return formatToString(this, s);
+                    }
+
+                    @Override
+                    public void formatTo(Scope s, StringBuilder out) {
+                        expr.formatTo(s, out);
+                        out.append(';');
                     }
 
                     @Override
@@ -964,6 +1211,17 @@ public abstract class JavaScript {
             return JavaScript.format(this, this.format(s), StatementPrecedence.BLOCK);
         }
 
+        /** Append this statement to {@code out}, with braces if it is not already a block. */
+        default void formatAsBlockTo(Scope s, StringBuilder out) {
+            if (this.getPrecedence().compareTo(StatementPrecedence.BLOCK) <= 0) {
+                this.formatTo(s, out);
+            } else {
+                out.append('{');
+                this.formatTo(s, out);
+                out.append('}');
+            }
+        }
+
         default StatementPrecedence getPrecedence() {
             return StatementPrecedence.BLOCK;
         }
@@ -1047,7 +1305,14 @@ public abstract class JavaScript {
             return new JsStatement() {
                 @Override
                 public String format(Scope s) {
-                    return IfBlock.this.format(s) +" else "+ seq(body).formatAsBlock(s);
+                    return formatToString(this, s);
+                }
+
+                @Override
+                public void formatTo(Scope s, StringBuilder out) {
+                    IfBlock.this.formatTo(s, out);
+                    out.append(" else ");
+                    seq(body).formatAsBlockTo(s, out);
                 }
 
                 @Override
@@ -1063,7 +1328,15 @@ public abstract class JavaScript {
         }
         @Override
         public String format(Scope s) {
-            return "if ("+ condition.format(s) +")"+ body.formatAsBlock(s);
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append("if (");
+            condition.formatTo(s, out);
+            out.append(')');
+            body.formatAsBlockTo(s, out);
         }
 
         @Override
@@ -1086,9 +1359,11 @@ public abstract class JavaScript {
         }
 
         @Override
-        public String format(Scope s) {
-            return previous.format(s) +" else "+
-                    JavaScript.format(this, super.format(s), StatementPrecedence.CONTROL_STRUCTURE);
+        public void formatTo(Scope s, StringBuilder out) {
+            previous.formatTo(s, out);
+            out.append(" else ");
+            // an if statement never needs braces after 'else'
+            super.formatTo(s, out);
         }
     }
 
@@ -1099,11 +1374,21 @@ public abstract class JavaScript {
     private record JsObjectLiteral(Map<String, JsExpression> map) implements JsExpression {
         @Override
         public String format(Scope s) {
-            return "{" + map.entrySet().stream().map(e ->
-                            literal(e.getKey()).format(s) + ":" +
-                                    e.getValue().format(s))
-                    .collect(joining(",")) +
-                    "}";
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append('{');
+            String comma = "";
+            for (var entry : map.entrySet()) {
+                out.append(comma);
+                literal(entry.getKey()).formatTo(s, out);
+                out.append(':');
+                entry.getValue().formatTo(s, out);
+                comma = ",";
+            }
+            out.append('}');
         }
 
         @Override
@@ -1160,9 +1445,19 @@ public abstract class JavaScript {
 
         @Override
         public String format(Scope s) {
-            return "[" + elements.stream()
-                    .map(expr -> expr.format(s))
-                    .collect(joining(", ")) +"]";
+            return formatToString(this, s);
+        }
+
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            out.append('[');
+            String comma = "";
+            for (var element : elements) {
+                out.append(comma);
+                element.formatTo(s, out);
+                comma = ", ";
+            }
+            out.append(']');
         }
         
         @Override
@@ -1199,6 +1494,11 @@ public abstract class JavaScript {
                     return body.format(s.withSymbolValue(Symbol.this, value));
                 }
 
+                @Override
+                public void formatTo(Scope s, StringBuilder out) {
+                    body.formatTo(s.withSymbolValue(Symbol.this, value), out);
+                }
+
                 @Override
                 public List<Symbol> getFreeSymbols() {
                     return List.of();
@@ -1221,6 +1521,16 @@ public abstract class JavaScript {
             return s.resolve(this).format(s, targetPrecedence);
         }
 
+        @Override
+        public void formatTo(Scope s, StringBuilder out) {
+            s.resolve(this).formatTo(s, out);
+        }
+
+        @Override
+        public void formatTo(Scope s, Precedence targetPrecedence, StringBuilder out) {
+            s.resolve(this).formatTo(s, targetPrecedence, out);
+        }
+
         @Override
         public Precedence getPrecedence() {
             return ATOM; // symbols are supposed to be replaced with variables
@@ -1244,10 +1554,20 @@ public abstract class JavaScript {
                 return supplier.get().format(s);
             }
 
+            @Override
+            public void formatTo(Scope s, StringBuilder out) {
+                supplier.get().formatTo(s, out);
+            }
+
             @Override
             public List<Symbol> getFreeSymbols() {
                 return supplier.get().getFreeSymbols();
             }
+
+            @Override
+            public StatementPrecedence getPrecedence() {
+                return supplier.get().getPrecedence();
+            }
         };
     }
     public static JsExpression dynamicExpression(Supplier<JsExpression> supplier) {
@@ -1257,6 +1577,11 @@ public abstract class JavaScript {
                 return supplier.get().format(s);
             }
 
+            @Override
+            public void formatTo(Scope s, StringBuilder out) {
+                supplier.get().formatTo(s, out);
+            }
+
             @Override
             public List<Symbol> getFreeSymbols() {
                 return supplier.get().getFreeSymbols();
@@ -1280,16 +1605,27 @@ public abstract class JavaScript {
          */
         Scope FOR_TOSTRING = base -> "{" + base +"}";
 
+        /** Create a new empty scope, generating the shortest possible names, regardless of the requested base name.
+         * Names start with an underscore, which is not used by other names generated by this class, and are then
+         * numbered in base 36. */
+        static Scope shortNames() {
+            final int[] counter = {0};
+            return base -> "_" + Integer.toString(counter[0]++, Character.MAX_RADIX);
+        }
+
         /** Create a new empty scope. */
         static Scope empty() {
             final Set<String> used = new HashSet<>();
+            // for each base, the counter below which all suffixed names are known to be used
+            final Map<String, Integer> counters = new HashMap<>();
 
             return base -> {
                 String candidate = base;
-                int counter = 1;
+                int counter = counters.getOrDefault(base, 1);
                 while (!used.add(candidate)) { // as long as adding to 'used' doesn't change anything...
                     candidate = base + (counter++);
                 }
+                counters.put(base, counter);
                 return candidate;
             };
         }
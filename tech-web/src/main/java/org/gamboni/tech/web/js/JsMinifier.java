@@ -0,0 +1,80 @@
+package org.gamboni.tech.web.js;
+
+/** Removes unnecessary whitespace from JavaScript code. The result only depends on the input, so that minified
+ * scripts may be hashed and cached.
+ * <p>
+ * Line breaks are kept where a semicolon could have been omitted, to preserve automatic semicolon insertion.
+ * Strings, template literals and comments are copied as is. Regular expression literals are not recognised, as the
+ * {@link JavaScript} DSL does not generate them.
+ * </p>
+ */
+public final class JsMinifier {
+    private JsMinifier() {}
+
+    /** Characters after which a line break may be removed without changing how the code is parsed. */
+    private static final String NO_SEMICOLON_NEEDED = ";{(,[";
+
+    public static String stripWhitespace(String code) {
+        var out = new StringBuilder(code.length());
+        int i = 0;
+        while (i < code.length()) {
+            char c = code.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                i = copyString(code, i, out);
+            } else if (c == '/' && i + 1 < code.length() && code.charAt(i + 1) == '/') {
+                int end = code.indexOf('\n', i);
+                end = (end == -1) ? code.length() : end + 1;
+                out.append(code, i, end);
+                i = end;
+            } else if (c == '/' && i + 1 < code.length() && code.charAt(i + 1) == '*') {
+                int end = code.indexOf("*/", i + 2);
+                end = (end == -1) ? code.length() : end + 2;
+                out.append(code, i, end);
+                i = end;
+            } else if (Character.isWhitespace(c)) {
+                boolean newLine = false;
+                while (i < code.length() && Character.isWhitespace(code.charAt(i))) {
+                    newLine |= code.charAt(i) == '\n';
+                    i++;
+                }
+                if (out.length() > 0 && i < code.length()) {
+                    char previous = out.charAt(out.length() - 1);
+                    char next = code.charAt(i);
+                    if (newLine && NO_SEMICOLON_NEEDED.indexOf(previous) == -1) {
+                        out.append('\n');
+                    } else if (needsSpace(previous, next)) {
+                        out.append(' ');
+                    }
+                }
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        return out.toString();
+    }
+
+    /** Whether removing the space between the two given characters would merge two tokens. */
+    private static boolean needsSpace(char previous, char next) {
+        return (isIdentifierPart(previous) && isIdentifierPart(next)) ||
+                // a + +b, a - -b, a / /b/
+                (previous == next && "+-/".indexOf(previous) != -1) ||
+                (previous == '/' && next == '*');
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /** Copy the string starting at {@code start} to {@code out}, and return the index following it. */
+    private static int copyString(String code, int start, StringBuilder out) {
+        char quote = code.charAt(start);
+        int i = start + 1;
+        while (i < code.length() && code.charAt(i) != quote) {
+            i += (code.charAt(i) == '\\') ? 2 : 1;
+        }
+        int end = Math.min(i + 1, code.length());
+        out.append(code, start, end);
+        return end;
+    }
+}
@@ -3,6 +3,13 @@ package org.gamboni.tech.web.js;
 import lombok.RequiredArgsConstructor;
 import org.gamboni.tech.web.ui.Page;
 import org.gamboni.tech.web.ui.PageMember;
+import org.gamboni.tech.web.ws.FrameCompression;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import static lombok.AccessLevel.PRIVATE;
 import static lombok.AccessLevel.PROTECTED;
@@ -19,23 +26,45 @@ public class JsPersistentWebSocket implements PageMember<Object, JsPersistentWeb
 
     private static final int POLL_INTERVAL = 60000;
 
+    /** Whether to request {@link FrameCompression compressed} messages. */
+    private boolean compression = false;
+
+    /* The following globals are renamed with Page.freshGlobal() when added to a page. */
+
     /** Queued events, used when the connection is down. */
-    protected final JsGlobal queue = new JsGlobal("queue");
+    protected JsGlobal queue = new JsGlobal("queue");
 
     /** Current websocket object. A new one is created every time the connection drops. */
-    protected final JsGlobal socket = new JsGlobal("socket");
+    protected JsGlobal socket = new JsGlobal("socket");
 
     /** Submit an action to send to back-end */
-    protected final Fun1 submit = new Fun1("submit");
+    protected Fun1 submit = new Fun1("submit");
 
-    protected final Fun flushQueue = new Fun("flushQueue");
+    protected Fun flushQueue = new Fun("flushQueue");
 
-    protected final Fun poll = new Fun("poll");
+    protected Fun poll = new Fun("poll");
+
+    /** Promise resolved when the latest message has been handled, used with {@link #withCompression()}. */
+    protected JsGlobal received = new JsGlobal("received");
 
     public JsPersistentWebSocket(Handler handler) {
         this(DEFAULT_URL, handler);
     }
 
+    /** Request large messages to be {@link FrameCompression compressed}, if the back end supports it. This must be
+     * called before {@link #addTo(Page)}.
+     * <p>
+     * Compressed messages are decompressed asynchronously, so all messages are then handled from a promise chain,
+     * in the order they were received.
+     * </p>
+     *
+     * @return this object.
+     */
+    public JsPersistentWebSocket withCompression() {
+        this.compression = true;
+        return this;
+    }
+
     public interface Handler extends PageMember<Object, Handler> {
         /** This method may be overridden to declare any functions or globals needed by this handler.
          * Default implementation does nothing. */
@@ -56,6 +85,18 @@ public class JsPersistentWebSocket implements PageMember<Object, JsPersistentWeb
          * you need to do many things in sequence.
          */
         JsStatement handleEvent(JsExpression message);
+
+        /** Convert a message parsed from JSON before passing it to {@link #handleEvent}, for instance to support a
+         * more compact wire format. Default implementation returns the message unchanged. */
+        default JsExpression decode(JsExpression message) {
+            return message;
+        }
+
+        /** Query parameters to add to the websocket url, for instance to tell the back end which wire format this
+         * handler supports. Default implementation returns an empty map. */
+        default Map<String, String> getUrlParameters() {
+            return Map.of();
+        }
     }
 
     public static JsPersistentWebSocket forHandler(Handler handler) {
@@ -67,6 +108,16 @@ public class JsPersistentWebSocket implements PageMember<Object, JsPersistentWeb
      */
     @Override
     public JsPersistentWebSocket.Added addTo(Page<?> page) {
+        queue = new JsGlobal(page.freshGlobal("queue"));
+        socket = new JsGlobal(page.freshGlobal("socket"));
+        submit = new Fun1(page.freshGlobal("submit"));
+        flushQueue = new Fun(page.freshGlobal("flushQueue"));
+        poll = new Fun(page.freshGlobal("poll"));
+        if (compression) {
+            received = new JsGlobal(page.freshGlobal("received"));
+            page.addToScript(received.declare(Promise.invoke("resolve")));
+        }
+
         var handlerInstance = handler.addTo(page);
 
         Added added = new Added(handlerInstance);
@@ -92,7 +143,7 @@ public class JsPersistentWebSocket implements PageMember<Object, JsPersistentWeb
                                 JavaScript.window.dot("location").dot("protocol").eq("https")
                                         .cond(literal("wss://"), literal("ws://"))
                                         .plus(JavaScript.window.dot("location").dot("host"))
-                                        .plus(literal(socketUrl)))),
+                                        .plus(literal(socketUrl + query(getUrlParameters(handlerInstance)))))),
                         /* If the websocket is already closed, we could not establish the connection, and try again later. */
                         _if(socket.dot("readyState").eq(WebSocket.dot("CLOSED")),
                                 setTimeout(poll.invoke(), POLL_INTERVAL),
@@ -132,7 +183,24 @@ public class JsPersistentWebSocket implements PageMember<Object, JsPersistentWeb
          * and delegates to {@link Handler#handleEvent}. You should normally override handleEvent which
          * handles the payload object. */
         protected JsFragment onMessage(JsExpression event) {
-            return handler.handleEvent(jsonParse(event.dot("data")));
+            if (!compression) {
+                return onText(event.dot("data"));
+            }
+            JsExpression data = event.dot("data");
+            // binary messages are compressed
+            JsExpression text = data.isInstanceOf(Blob).cond(
+                    newResponse(data.invoke("stream").invoke("pipeThrough", newDecompressionStream("deflate")))
+                            .invoke("text"),
+                    data);
+            return received.set(received
+                    .invoke("then", lambda(text))
+                    .invoke("then", lambda("text", this::onText))
+                    // keep the chain going
+                    .invoke("catch", lambda("error", JavaScript::consoleLog)));
+        }
+
+        private JsFragment onText(JsExpression text) {
+            return handler.handleEvent(handler.decode(jsonParse(text)));
         }
 
         public JsExpression poll() {
@@ -181,6 +249,23 @@ public class JsPersistentWebSocket implements PageMember<Object, JsPersistentWeb
         );
     }
 
+    private Map<String, String> getUrlParameters(Handler handler) {
+        if (!compression) {
+            return handler.getUrlParameters();
+        }
+        Map<String, String> parameters = new LinkedHashMap<>(handler.getUrlParameters());
+        parameters.put(FrameCompression.PARAMETER, "1");
+        return parameters;
+    }
+
+    private static String query(Map<String, String> parameters) {
+        return parameters.entrySet()
+                .stream()
+                .map(p -> URLEncoder.encode(p.getKey(), StandardCharsets.UTF_8) + "=" +
+                        URLEncoder.encode(p.getValue(), StandardCharsets.UTF_8))
+                .collect(Collectors.joining("&", parameters.isEmpty() ? "" : "?", ""));
+    }
+
     /** Convert an expression passed to submit() into an expression to send to the back end. */
     protected JsExpression serialise(JsExpression action) {
         return jsonStringify(action);
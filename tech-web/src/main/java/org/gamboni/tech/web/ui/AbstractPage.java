@@ -5,6 +5,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import org.gamboni.tech.web.js.JavaScript;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -20,19 +21,23 @@ import static org.gamboni.tech.web.js.JavaScript.seq;
 public abstract class AbstractPage<T> extends AbstractComponent implements Renderer<T>, Page<T> {
     private final Script script;
 
-    public final JavaScript.Scope globals = JavaScript.Scope.empty();
+    /** Names of global variables and functions. These are {@link JavaScript.Scope#shortNames() short} if the script
+     * is {@link Script#isMinified() minified}. */
+    public final JavaScript.Scope globals;
 
     /** Many ids are actually concatenated with the id of an object. In this case this
      * scope will only contain the fixed part.
      */
     private final JavaScript.Scope elementIds = JavaScript.Scope.empty();
 
-    private final JavaScript.FunN onLoad = new JavaScript.FunN("onLoad");
+    private final JavaScript.FunN onLoad;
     private final Map<JavaScript.JsExpression, Function<T, JavaScript.JsExpression>> onLoadParameters = new HashMap<>();
     private final List<JavaScript.JsFragment> loadBody = new ArrayList<>();
 
     protected AbstractPage(Script script) {
         this.script = script;
+        this.globals = script.isMinified() ? JavaScript.Scope.shortNames() : JavaScript.Scope.empty();
+        this.onLoad = new JavaScript.FunN(freshGlobal("onLoad"));
     }
 
     @Override
@@ -42,7 +47,7 @@ public abstract class AbstractPage<T> extends AbstractComponent implements Rende
 
     @Override
     public String freshGlobal(String base) {
-        return elementIds.freshVariableName(base);
+        return script.isMinified() ? globals.freshVariableName(base) : elementIds.freshVariableName(base);
     }
 
     @Override
@@ -108,7 +113,7 @@ public abstract class AbstractPage<T> extends AbstractComponent implements Rende
     /** @apiNote eventually, this will be removed, and render() will be implemented in AbstractPage.java itself.
      * For now, this must be used as parameter to the {@code html()} call, and you're supposed to know whether your page
      * actually has scripting elements. */
-    protected Resource getScript() {
+    protected Script getScript() {
         return script;
     }
 
@@ -135,8 +140,9 @@ public abstract class AbstractPage<T> extends AbstractComponent implements Rende
         }
 
         @Override
-        public String toString() {
-            return "<!DOCTYPE html>\n" + super.toString();
+        public void render(Appendable out) throws IOException {
+            out.append("<!DOCTYPE html>\n");
+            super.render(out);
         }
     }
 }
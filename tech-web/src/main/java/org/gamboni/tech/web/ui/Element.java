@@ -1,6 +1,5 @@
 package org.gamboni.tech.web.ui;
 
-import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Streams;
@@ -10,6 +9,7 @@ import lombok.RequiredArgsConstructor;
 import org.gamboni.tech.misc.LazyBuilder;
 import org.gamboni.tech.web.js.JavaScript;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -30,6 +30,17 @@ public class Element implements Html {
     @Getter
     private final Iterable<? extends JavaScript.JsFragment> onload;
 
+    /** Marker values for {@link #rendering}. */
+    private static final Object RENDERED_ONCE = new Object();
+    private static final Object DYNAMIC = new Object();
+
+    /** {@code null} until this element is first rendered, then {@link #RENDERED_ONCE}. When rendered again, either
+     * {@link #DYNAMIC} or, if this element {@linkplain #isConstant() is constant}, its HTML code, which is then reused
+     * instead of rendering the subtree again. Elements built for a single response therefore don't pay for the
+     * check, while those kept across responses (or rendered many times in one) do it once. Not synchronised, as
+     * concurrent renders at worst do the same work twice. */
+    private Object rendering;
+
     public Element(String name, Iterable<? extends Attribute> attributes, Iterable<? extends HtmlFragment> contents) {
         this(name,
                 attributes,
@@ -131,11 +142,102 @@ public class Element implements Html {
         return new IdentifiedElement(id, name, attributes, contents, onload);
     }
 
+    /** Return an element equivalent to this one, whose HTML code is rendered once and for all. Useful for elements
+     * rendered many times. Elements derived from the returned one (for instance with {@link #withAttribute}) are
+     * rendered normally. */
+    public Element prerendered() {
+        return new Prerendered(this);
+    }
+
+    private static class Prerendered extends Element {
+        private final String html;
+
+        Prerendered(Element element) {
+            super(element.name, element.attributes, element.contents, element.onload);
+            this.html = element.toString();
+        }
+
+        @Override
+        public Element prerendered() {
+            return this;
+        }
+
+        @Override
+        public boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return html;
+        }
+
+        @Override
+        public void render(Appendable out) throws IOException {
+            out.append(html);
+        }
+    }
+
     public String toString() {
-        return "<" + name + (Iterables.isEmpty(attributes) ? "" : " " + Tag.renderAttributes(attributes)) + ">" +
+        return Html.renderToString(this);
+    }
 
-                Joiner.on("").join(contents)
-                + "</" + name + ">";
+    @Override
+    public void render(Appendable out) throws IOException {
+        Object state = rendering;
+        if (state instanceof String html) {
+            out.append(html);
+            return;
+        } else if (state == null) {
+            rendering = RENDERED_ONCE;
+        } else if (state == RENDERED_ONCE) {
+            if (isConstant()) {
+                StringBuilder html = new StringBuilder();
+                renderTo(html, false);
+                rendering = html.toString();
+                out.append(html);
+                return;
+            }
+            rendering = DYNAMIC;
+        }
+        renderTo(out, true);
+    }
+
+    /**
+     * @param cacheChildren whether child elements may cache their own HTML code. Not done when rendering a constant
+     *                      element into its cache, which already holds theirs.
+     */
+    private void renderTo(Appendable out, boolean cacheChildren) throws IOException {
+        out.append('<').append(name);
+        Tag.renderAttributes(out, attributes);
+        out.append('>');
+        for (Html child : contents) {
+            if (!cacheChildren && child instanceof Element element) {
+                element.renderTo(out, false);
+            } else {
+                child.render(out);
+            }
+        }
+        out.append("</").append(name).append('>');
+    }
+
+    @Override
+    public boolean isConstant() {
+        Object state = rendering;
+        if (state instanceof String) {
+            return true;
+        } else if (state == DYNAMIC) {
+            return false;
+        }
+        if (!Tag.areConstant(attributes)) {
+            return false;
+        }
+        for (Html child : contents) {
+            if (!child.isConstant()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -0,0 +1,121 @@
+package org.gamboni.tech.web.ui;
+
+import java.io.IOException;
+
+/** Replaces special characters of a text by escape sequences, in a single pass. Runs of characters not needing
+ * escaping are copied as they are, and text not needing escaping at all is returned unchanged, without allocating
+ * anything. Only ASCII characters can be escaped.
+ */
+public final class Escaper {
+
+    /** Text content of an HTML element. */
+    public static final Escaper HTML_TEXT = new Escaper()
+            .replace('&', "&amp;")
+            .replace('<', "&lt;")
+            .replace('>', "&gt;");
+
+    /** Value of an HTML attribute, enclosed in double quotes. */
+    public static final Escaper HTML_ATTRIBUTE = new Escaper()
+            .replace('&', "&amp;")
+            .replace('"', "&quot;");
+
+    /** Contents of a JavaScript string literal enclosed in single quotes. */
+    public static final Escaper JS_STRING = new Escaper()
+            .replace('\\', "\\\\")
+            .replace('\'', "\\'");
+
+    /** Replacement of each ASCII character, {@code null} for those copied as they are. */
+    private final String[] replacements = new String[128];
+    /** Bit {@code c} (resp. {@code c - 64}) is set if character {@code c} needs escaping, so that scanning text
+     * doesn't need to read {@link #replacements}. */
+    private long low = 0;
+    private long high = 0;
+    /** The characters needing escaping. */
+    private String specials = "";
+
+    private Escaper() {}
+
+    private Escaper replace(char c, String replacement) {
+        replacements[c] = replacement;
+        specials += c;
+        if (c < 64) {
+            low |= 1L << c;
+        } else {
+            high |= 1L << (c - 64);
+        }
+        return this;
+    }
+
+    /** Return the given text escaped, or the same instance if it contains no special character. */
+    public String escape(String text) {
+        int first = firstSpecial(text);
+        if (first == text.length()) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length() + 16);
+        result.append(text, 0, first);
+        escapeTo(text, first, result);
+        return result.toString();
+    }
+
+    /** Write the given text escaped to the given output. */
+    public void escapeTo(CharSequence text, Appendable out) throws IOException {
+        int start = 0;
+        if (text instanceof String string) {
+            start = firstSpecial(string);
+            out.append(text, 0, start);
+        }
+        int special;
+        while ((special = nextSpecial(text, start)) < text.length()) {
+            out.append(text, start, special).append(replacements[text.charAt(special)]);
+            start = special + 1;
+        }
+        out.append(text, start, text.length());
+    }
+
+    /** Write the given text escaped to the given buffer. */
+    public void escapeTo(CharSequence text, StringBuilder out) {
+        int start = 0;
+        if (text instanceof String string) {
+            start = firstSpecial(string);
+            out.append(text, 0, start);
+        }
+        escapeTo(text, start, out);
+    }
+
+    private void escapeTo(CharSequence text, int start, StringBuilder out) {
+        int special;
+        while ((special = nextSpecial(text, start)) < text.length()) {
+            out.append(text, start, special).append(replacements[text.charAt(special)]);
+            start = special + 1;
+        }
+        out.append(text, start, text.length());
+    }
+
+    /** Return the index of the first character needing escaping, or the text length if there is none. Faster than
+     * {@link #nextSpecial} on text needing little escaping, as {@link String#indexOf(int)} is vectorised. */
+    private int firstSpecial(String text) {
+        int first = text.length();
+        for (int i = 0; i < specials.length(); i++) {
+            int index = text.indexOf(specials.charAt(i));
+            if (index >= 0 && index < first) {
+                first = index;
+            }
+        }
+        return first;
+    }
+
+    /** Return the index of the first character needing escaping at or after {@code start}, or the text length if
+     * there is none. */
+    private int nextSpecial(CharSequence text, int start) {
+        int length = text.length();
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            // (shifts only use the low six bits of c)
+            if ((c < 64) ? (low & (1L << c)) != 0 : (c < 128 && (high & (1L << c)) != 0)) {
+                return i;
+            }
+        }
+        return length;
+    }
+}
@@ -7,6 +7,13 @@ import org.gamboni.tech.web.js.JavaScript.JsStatement;
 import org.gamboni.tech.web.ui.value.StringValue;
 import org.gamboni.tech.web.ui.value.Value;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
@@ -29,6 +36,12 @@ public interface Html extends HtmlFragment {
         }
 
         public String toString() { return ""; }
+
+        @Override
+        public boolean isConstant() {
+            return true;
+        }
+
         public int hashCode() { return 9; }
         public boolean equals(Object that) {
             return (that instanceof EmptyHtml);
@@ -42,10 +55,18 @@ public interface Html extends HtmlFragment {
                 return JsStatement.of(continuation.apply(JavaScript.createTextNode(text)));
             }
 
+            @Override
+            public boolean isConstant() {
+                return true;
+            }
+
             public String toString() {
-                return text.replace("&", "&amp;")
-                        .replace("<", "&lt;")
-                        .replace(">", "&gt;");
+                return Escaper.HTML_TEXT.escape(text);
+            }
+
+            @Override
+            public void render(Appendable out) throws IOException {
+                Escaper.HTML_TEXT.escapeTo(text, out);
             }
         };
     }
@@ -57,19 +78,60 @@ public interface Html extends HtmlFragment {
                 return JsStatement.of(continuation.apply(JavaScript.createTextNode(text)));
             }
 
+            @Override
+            public boolean isConstant() {
+                return text.constantValue().isPresent();
+            }
+
             public String toString() {
                 // TODO distinguish static and dynamic html. Don't support generating static html for potentially dynamic input?
-                return text.assertStatic().replace("&", "amp;")
-                        .replace("<", "&lt;")
-                        .replace(">", "&gt;");
+                return Escaper.HTML_TEXT.escape(text.assertStatic());
+            }
+
+            @Override
+            public void render(Appendable out) throws IOException {
+                Escaper.HTML_TEXT.escapeTo(text.assertStatic(), out);
             }
         };
     }
 
+    /** Return {@code true} if this fragment renders the same HTML code every time, so that elements containing it
+     * may render it once and for all. The default implementation returns {@code false}. */
+    default boolean isConstant() {
+        return false;
+    }
+
     default Iterator<Html> iterator() {
         return List.of(this).iterator();
     }
 
+    /** Write the HTML code of this fragment to the given output. The default implementation writes
+     * {@code toString()}. Implementations containing other fragments should override it to render them directly
+     * into {@code out}, instead of building intermediate strings. */
+    default void render(Appendable out) throws IOException {
+        out.append(toString());
+    }
+
+    /** Write the HTML code of this fragment to the given stream, without building it in memory. The stream is
+     * flushed but not closed. */
+    default void render(OutputStream out, Charset charset) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, charset));
+        render(writer);
+        writer.flush();
+    }
+
+    /** Return the HTML code of the given fragment. Helper to implement {@code toString()} in terms of
+     * {@link #render(Appendable)}. */
+    static String renderToString(Html html) {
+        StringBuilder result = new StringBuilder();
+        try {
+            html.render(result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder does not throw IOException
+        }
+        return result.toString();
+    }
+
     /** Fluent interface to create an IdentifiedElement. Usage: {@code setId(id).to(...)}. */
     static IdentifiedElementBuilder setId(String id) {
         return new IdentifiedElementBuilder(id);
@@ -82,9 +144,9 @@ public interface Html extends HtmlFragment {
     }
 
     static String quote(String attribute) {
-        return '"' + attribute
-                .replace("&", "&amp;")
-                .replace("\"", "&quot;") + '"';
+        StringBuilder result = new StringBuilder(attribute.length() + 2).append('"');
+        Escaper.HTML_ATTRIBUTE.escapeTo(attribute, result);
+        return result.append('"').toString();
     }
 
     static Attribute attribute(String name, Value<String> value) {
@@ -114,12 +176,11 @@ public interface Html extends HtmlFragment {
             }
 
             @Override
-            public String render() {
+            public void render(Appendable out) throws IOException {
                 String text = getAttributeValue().format(JavaScript.Scope.NO_DECLARATION);
-                return getAttributeName() +"=\""+ text
-                        .replace("&", "&amp;")
-                        .replace("\"", "&quot;")
-                        + "\"";
+                out.append(getAttributeName()).append("=\"");
+                Escaper.HTML_ATTRIBUTE.escapeTo(text, out);
+                out.append('"');
             }
 
             @Override
@@ -154,6 +215,11 @@ public interface Html extends HtmlFragment {
             return false;
         }
 
+        /** Return {@code true} if this attribute always renders the same way. See {@link Html#isConstant()}. */
+        default boolean isConstant() {
+            return isTrivial() || getAttributeValue().constantValue().isPresent();
+        }
+
         default JsStatement javascriptCreate(JsExpression elt) {
                 return JsStatement.of(
                         elt.invoke("setAttribute",
@@ -161,11 +227,21 @@ public interface Html extends HtmlFragment {
         }
 
         default String render() {
+            StringBuilder result = new StringBuilder();
+            try {
+                render(result);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // StringBuilder does not throw IOException
+            }
+            return result.toString();
+        }
+
+        /** Write this attribute, as {@code name="value"}, to the given output. */
+        default void render(Appendable out) throws IOException {
             String text = getAttributeValue().assertStatic();
-            return getAttributeName() +"=\""+ text
-                    .replace("&", "&amp;")
-                    .replace("\"", "&quot;")
-                    + "\"";
+            out.append(getAttributeName()).append("=\"");
+            Escaper.HTML_ATTRIBUTE.escapeTo(text, out);
+            out.append('"');
         }
     }
 }
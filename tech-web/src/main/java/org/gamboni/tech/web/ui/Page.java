@@ -10,6 +10,8 @@ public interface Page<T> {
         JavaScript.JsExpression addParameter(Function<T, JavaScript.JsExpression> value);
     }
 
+    /** Return a new name for a global variable or function, based on the given one. The name may be shortened in
+     * production, so globals should be named with this method rather than hard-coded. */
     String freshGlobal(String base);
     String freshElementId(String base);
     void addToOnLoad(Function<AbstractPage.OnLoad<T>, JavaScript.JsFragment> code);
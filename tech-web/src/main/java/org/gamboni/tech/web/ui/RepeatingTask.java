@@ -3,6 +3,7 @@ package org.gamboni.tech.web.ui;
 import org.gamboni.tech.web.js.JavaScript;
 
 import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static java.util.stream.Collectors.toMap;
@@ -34,16 +35,20 @@ public class RepeatingTask {
         return page -> {
             Map<Symbol, JsGlobal> freeVariables = body.getFreeSymbols()
                     .stream()
+                    .distinct()
+                    // keep symbol order so that global names are deterministic
                     .collect(toMap(
                             s -> s,
                     s -> {
                 var globalVar = new JsGlobal(page.freshGlobal("c"));
                 page.addToScript(globalVar.declare(_null));
                 return globalVar;
-                    }));
+                    },
+                            (a, b) -> a,
+                            LinkedHashMap::new));
 
-            var timer = new JavaScript.JsGlobal(page.freshElementId("timer"));
-            var function = new JavaScript.Fun(page.freshElementId("loop"));
+            var timer = new JavaScript.JsGlobal(page.freshGlobal("timer"));
+            var function = new JavaScript.Fun(page.freshGlobal("loop"));
 
             page.addToScript(
                     timer.declare(_null),
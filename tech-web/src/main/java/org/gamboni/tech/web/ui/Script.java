@@ -1,28 +1,119 @@
 package org.gamboni.tech.web.ui;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.gamboni.tech.web.js.JsMinifier;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
-import static java.util.stream.Collectors.joining;
 import static org.gamboni.tech.web.ui.Html.attribute;
 
 /**
  * @author tendays
  */
+@Slf4j
 public class Script implements Resource {
 
+    /** {@code Cache-Control} value for requests made to the {@link #getVersionedUrl() versioned url}, whose
+     * contents never change. */
+    public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    /** {@code Cache-Control} value for other requests, which must be revalidated with the ETag. */
+    public static final String REVALIDATE_CACHE_CONTROL = "no-cache";
+    /** Name of the query parameter carrying the content hash in {@link #getVersionedUrl()}. */
+    public static final String VERSION_PARAMETER = "v";
+    /** Class path location of scripts rendered at build time. See {@link #setPrerendered(String)}. */
+    public static final String PRERENDERED_PATH = "META-INF/org.gamboni.tech/scripts/";
+
+    /** The script, as sent to clients. Computed once, as the script can no longer change after rendering starts.
+     *
+     * @param text the script code.
+     * @param utf8 {@code text} encoded in UTF-8.
+     * @param gzip {@code utf8} compressed with gzip.
+     * @param hash hash of the contents, used as version in {@link #getVersionedUrl()}.
+     */
+    public record Rendered(String text, byte[] utf8, byte[] gzip, String hash) {
+        /** A strong entity tag for this content. */
+        public String etag() {
+            return '"' + hash + '"';
+        }
+
+        /** Return {@code true} if the given {@code If-None-Match} header value (which may be {@code null}) matches
+         * this content, meaning the client already has it. */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : Splitter.on(',').trimResults().omitEmptyStrings().split(ifNoneMatch)) {
+                // If-None-Match uses weak comparison
+                if (tag.equals("*") || tag.equals(etag()) || tag.equals("W/" + etag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Return {@code true} if the given {@code Accept-Encoding} header value (which may be {@code null})
+         * allows sending the {@link #gzip()} variant. */
+        public static boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return false;
+            }
+            for (String coding : Splitter.on(',').trimResults().split(acceptEncoding)) {
+                List<String> parts = Splitter.on(';').trimResults().splitToList(coding);
+                if (parts.get(0).equalsIgnoreCase("gzip") || parts.get(0).equals("*")) {
+                    return parts.stream().skip(1).noneMatch(p -> p.replace(" ", "").matches("q=0(\\.0*)?"));
+                }
+            }
+            return false;
+        }
+
+        /** Return the {@code Cache-Control} header to send in response to a request for the given version (which
+         * may be {@code null} if the request did not carry any). */
+        public String cacheControl(String requestedVersion) {
+            return hash.equals(requestedVersion) ? IMMUTABLE_CACHE_CONTROL : REVALIDATE_CACHE_CONTROL;
+        }
+    }
+
     private final List<ScriptMember> members = new ArrayList<>();
 
+    /** Whether this script is sent {@link JsMinifier minified}, and pages using it should generate short global names.
+     * Intended for production. */
+    @Getter
+    private final boolean minified;
+
     private boolean exposed = false;
 
+    private Rendered rendered = null;
+
+    /** Code to send instead of rendering {@link #members}, if known in advance. */
+    private String prerendered = null;
+    /** {@link #sourceHash()} of the script {@link #prerendered} was rendered from, or {@code null} to use it without
+     * checking. */
+    private String prerenderedSourceHash = null;
+
     @Getter
     @Setter
     private String url = "/script.js";
 
+    public Script() {
+        this(false);
+    }
+
+    public Script(boolean minified) {
+        this.minified = minified;
+    }
+
     public void add(ScriptMember member) {
         Preconditions.checkState(!exposed, "Adding elements to a script is not allowed once it has stared rendering!");
         this.members.add(member);
@@ -34,11 +125,85 @@ public class Script implements Resource {
 
     @Override
     public String render() {
-        this.exposed = true;
-        return members
-                .stream()
-                .map(ScriptMember::render)
-                .collect(joining());
+        return getRendered().text();
+    }
+
+    /** Use the given code instead of rendering the members of this script. This is used with scripts rendered at
+     * build time: members must still be added as usual, but are then not formatted (nor minified) at run time. The
+     * code is trusted to match them: the build is responsible for checking it is current. */
+    public synchronized void setPrerendered(String text) {
+        Preconditions.checkState(rendered == null, "Script already rendered");
+        this.prerendered = text;
+        this.prerenderedSourceHash = null;
+    }
+
+    /** Like {@link #setPrerendered(String)}, but only use the given code if the members of this script still have the
+     * given {@link #sourceHash()} when rendering starts. This costs formatting the members, but not minifying them, so
+     * it is only meant for diagnosing scripts which may differ at run time. */
+    public synchronized void setPrerendered(String text, String sourceHash) {
+        setPrerendered(text);
+        this.prerenderedSourceHash = sourceHash;
+    }
+
+    /** Hash of the members of this script, formatted but not minified. */
+    public String sourceHash() {
+        return hash(renderSource().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Render this script if not done yet, and return the result. */
+    public synchronized Rendered getRendered() {
+        if (rendered == null) {
+            this.exposed = true;
+            String text = null;
+            String source = null;
+            if (prerendered != null && prerenderedSourceHash != null) {
+                source = renderSource();
+                if (prerenderedSourceHash.equals(hash(source.getBytes(StandardCharsets.UTF_8)))) {
+                    text = prerendered;
+                } else {
+                    log.warn("Script rendered at build time does not match the one built at run time, ignoring it");
+                }
+            } else if (prerendered != null) {
+                text = prerendered;
+            }
+            if (text == null) {
+                if (source == null) {
+                    source = renderSource();
+                }
+                text = minified ? JsMinifier.stripWhitespace(source) : source;
+            }
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            rendered = new Rendered(text, utf8, gzip(utf8), hash(utf8));
+        }
+        return rendered;
+    }
+
+    private String renderSource() {
+        var out = new StringBuilder();
+        for (var member : members) {
+            member.renderTo(out);
+        }
+        return out.toString();
+    }
+
+    private static String hash(byte[] data) {
+        return BaseEncoding.base64Url().omitPadding().encode(Hashing.sha256().hashBytes(data).asBytes(), 0, 16);
+    }
+
+    private static byte[] gzip(byte[] data) {
+        var buffer = new ByteArrayOutputStream(data.length / 3 + 32);
+        try (var out = new GZIPOutputStream(buffer)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory streams do not throw IOException
+        }
+        return buffer.toByteArray();
+    }
+
+    /** The url of this script, including its content hash, so that it can be cached forever. Note that this renders
+     * the script, which may then no longer be modified. */
+    public String getVersionedUrl() {
+        return getUrl() + "?" + VERSION_PARAMETER + "=" + getRendered().hash();
     }
 
     @Override
@@ -46,7 +211,7 @@ public class Script implements Resource {
         return new Element("script",
                 List.of(
                         attribute("type", "text/javascript"),
-                        attribute("src", getUrl())
+                        attribute("src", getVersionedUrl())
                 ));
     }
 
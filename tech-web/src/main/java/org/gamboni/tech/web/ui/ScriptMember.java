@@ -2,4 +2,9 @@ package org.gamboni.tech.web.ui;
 
 public interface ScriptMember {
     String render();
+
+    /** Append this member to {@code out}. The default implementation appends {@link #render()}. */
+    default void renderTo(StringBuilder out) {
+        out.append(render());
+    }
 }
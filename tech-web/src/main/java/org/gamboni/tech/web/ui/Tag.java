@@ -1,13 +1,11 @@
 package org.gamboni.tech.web.ui;
 
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Streams;
 import org.gamboni.tech.web.js.JavaScript;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 /**
  * @author tendays
@@ -25,7 +23,19 @@ public class Tag implements Html {
     }
 
     public String toString() {
-        return "<"+ name + (Iterables.isEmpty(attributes) ? "" : " "+ renderAttributes(attributes)) +">";
+        return Html.renderToString(this);
+    }
+
+    @Override
+    public void render(Appendable out) throws IOException {
+        out.append('<').append(name);
+        renderAttributes(out, attributes);
+        out.append('>');
+    }
+
+    @Override
+    public boolean isConstant() {
+        return areConstant(attributes);
     }
 
     @Override
@@ -42,10 +52,22 @@ public class Tag implements Html {
                 });
     }
 
-    static String renderAttributes(Iterable<? extends Attribute> attributes) {
-        return Streams.stream(attributes)
-                .filter(a -> !a.isTrivial())
-                .map(Attribute::render)
-                .collect(Collectors.joining(" "));
+    static boolean areConstant(Iterable<? extends Attribute> attributes) {
+        for (Attribute attribute : attributes) {
+            if (!attribute.isConstant()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Write the given attributes, each preceded by a space, skipping trivial ones. */
+    static void renderAttributes(Appendable out, Iterable<? extends Attribute> attributes) throws IOException {
+        for (Attribute attribute : attributes) {
+            if (!attribute.isTrivial()) {
+                out.append(' ');
+                attribute.render(out);
+            }
+        }
     }
 }
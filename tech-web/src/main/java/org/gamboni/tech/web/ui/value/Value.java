@@ -69,6 +69,11 @@ public interface Value<T> extends JavaScript.JsExpression {
                 return jsValue.format(s);
             }
 
+            @Override
+            public void formatTo(JavaScript.Scope s, StringBuilder out) {
+                jsValue.formatTo(s, out);
+            }
+
             @Override
             public JavaScript.Precedence getPrecedence() {
                 return jsValue.getPrecedence();
@@ -104,6 +109,11 @@ public interface Value<T> extends JavaScript.JsExpression {
                 return jsValue.format(s);
             }
 
+            @Override
+            public void formatTo(JavaScript.Scope s, StringBuilder out) {
+                jsValue.formatTo(s, out);
+            }
+
             @Override
             public JavaScript.Precedence getPrecedence() {
                 return jsValue.getPrecedence();
@@ -144,6 +154,11 @@ public interface Value<T> extends JavaScript.JsExpression {
                 return value.format(s);
             }
 
+            @Override
+            public void formatTo(JavaScript.Scope s, StringBuilder out) {
+                value.formatTo(s, out);
+            }
+
             @Override
             public List<JavaScript.Symbol> getFreeSymbols() {
                 return value.getFreeSymbols();
@@ -210,6 +225,11 @@ public interface Value<T> extends JavaScript.JsExpression {
                     return expr.format(s);
                 }
 
+                @Override
+                public void formatTo(JavaScript.Scope s, StringBuilder out) {
+                    expr.formatTo(s, out);
+                }
+
                 @Override
                 public List<JavaScript.Symbol> getFreeSymbols() {
                     return expr.getFreeSymbols();
@@ -20,6 +20,11 @@ public abstract class ValueWrapper<T> implements Value<T> {
         return delegate.format(s);
     }
 
+    @Override
+    public void formatTo(JavaScript.Scope s, StringBuilder out) {
+        delegate.formatTo(s, out);
+    }
+
     @Override
     public JavaScript.Precedence getPrecedence() {
         return delegate.getPrecedence();
@@ -51,6 +56,11 @@ public abstract class ValueWrapper<T> implements Value<T> {
         return delegate.format(s, targetPrecedence);
     }
 
+    @Override
+    public void formatTo(JavaScript.Scope s, JavaScript.Precedence targetPrecedence, StringBuilder out) {
+        delegate.formatTo(s, targetPrecedence, out);
+    }
+
     @Override
     public List<JavaScript.Symbol> getFreeSymbols() {
         return delegate.getFreeSymbols();
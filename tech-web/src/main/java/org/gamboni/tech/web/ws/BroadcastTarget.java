@@ -1,13 +1,35 @@
 package org.gamboni.tech.web.ws;
 
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 public interface BroadcastTarget {
     void sendOrThrow(Object payload);
 
     void sendOrLog(Object payload);
 
+    /** Send the given payload without waiting for it to reach the client. The returned stage completes once it
+     * has been sent, or fails if it could not be. The default implementation sends synchronously.
+     */
+    default CompletionStage<Void> sendAsync(Object payload) {
+        try {
+            sendOrThrow(payload);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     void onClose(Runnable task);
 
     boolean isOpen();
 
+    /** Statistics about messages sent to this client, if tracked. The default implementation returns an empty
+     * {@code Optional}. */
+    default Optional<TransferStats.Snapshot> getTransferStats() {
+        return Optional.empty();
+    }
+
     void markClosed();
 }
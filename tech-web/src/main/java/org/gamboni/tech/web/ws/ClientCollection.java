@@ -2,19 +2,88 @@ package org.gamboni.tech.web.ws;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 
+/** Connected clients, indexed by session.
+ * <p>
+ *     Safe for concurrent use. Broadcasts iterate over the clients without copying or locking: a client connecting
+ *     or disconnecting during a broadcast may or may not receive it.
+ * </p>
+ *
+ * @param <S> session type
+ */
 @Slf4j
 public class ClientCollection<S> {
-    private final Map<S, BroadcastTarget> clients = new HashMap<>();
 
+    /** How far back {@link Stats#recentConnects()} and {@link Stats#recentDisconnects()} count. */
+    public static final Duration RATE_WINDOW = Duration.ofMinutes(1);
 
+    /** Connection counters, for monitoring.
+     *
+     * @param connected number of clients currently connected.
+     * @param connects total number of connections so far.
+     * @param disconnects total number of disconnections so far.
+     * @param recentConnects number of connections during the last {@link #RATE_WINDOW}.
+     * @param recentDisconnects number of disconnections during the last {@link #RATE_WINDOW}.
+     */
+    public record Stats(int connected, long connects, long disconnects, long recentConnects, long recentDisconnects) {
+        /** Connections per second over the last {@link #RATE_WINDOW}. */
+        public double connectRate() {
+            return (double) recentConnects / RATE_WINDOW.getSeconds();
+        }
+
+        /** Disconnections per second over the last {@link #RATE_WINDOW}. */
+        public double disconnectRate() {
+            return (double) recentDisconnects / RATE_WINDOW.getSeconds();
+        }
+    }
+
+    private final Map<S, BroadcastTarget> clients = new ConcurrentHashMap<>();
+    private final Function<Object, ?> encoder;
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final WindowedCounter recentConnects;
+    private final WindowedCounter recentDisconnects;
+
+    public ClientCollection() {
+        this(Function.identity());
+    }
+
+    /**
+     * @param encoder serialises broadcast payloads, typically into an {@link EncodedPayload}, once for all clients.
+     *                It may return its argument unchanged if serialisation fails, in which case each client attempts
+     *                (and reports) serialisation individually.
+     */
+    public ClientCollection(Function<Object, ?> encoder) {
+        this(encoder, System::currentTimeMillis);
+    }
+
+    ClientCollection(Function<Object, ?> encoder, LongSupplier millis) {
+        this.encoder = encoder;
+        this.recentConnects = new WindowedCounter(RATE_WINDOW, millis);
+        this.recentDisconnects = new WindowedCounter(RATE_WINDOW, millis);
+    }
+
+    /** Register a client. If another client was already registered for the same session, it is replaced and
+     * counted as disconnected. Registering the same client again has no effect. */
     public void put(S session, BroadcastTarget client) {
-        clients.put(session, client);
+        BroadcastTarget previous = clients.put(session, client);
+        if (previous == client) {
+            return;
+        }
+        if (previous != null) {
+            log.warn("Replacing {} registered for the same session by {}", previous, client);
+            closed(previous);
+        }
+        connects.increment();
+        recentConnects.increment();
     }
 
     public BroadcastTarget get(S session) {
@@ -24,38 +93,60 @@ public class ClientCollection<S> {
     public BroadcastTarget remove(S session) {
         BroadcastTarget client = clients.remove(session);
         if (client != null) {
-            client.markClosed();
+            closed(client);
         }
         return client;
     }
 
+    private void closed(BroadcastTarget client) {
+        disconnects.increment();
+        recentDisconnects.increment();
+        client.markClosed();
+    }
+
+    /** Number of clients currently connected. */
+    public int size() {
+        return clients.size();
+    }
+
+    public Stats getStats() {
+        return new Stats(clients.size(), connects.sum(), disconnects.sum(),
+                recentConnects.count(), recentDisconnects.count());
+    }
+
     public void broadcast(Object payload) {
-        Set<BroadcastTarget> clientCopies;
-        synchronized (this) {
-            clientCopies = Set.copyOf(this.clients.values());
-        }
-        log.info("Broadcasting {} to {} sessions.", payload, clientCopies.size());
-        for (var client : clientCopies) {
+        log.info("Broadcasting {} to {} sessions.", payload, clients.size());
+        Object encoded = clients.isEmpty() ? payload : encoder.apply(payload);
+        for (var client : clients.values()) {
             if (client.isOpen()) {
-                client.sendOrLog(payload);
+                send(client, encoded);
             }
         }
     }
 
     /** Broadcast customised information to all clients (e.g. filtering relevant/visible information to each).
+     * Clients receiving equal payloads share the same serialised form.
      *
      * @param payload a function computing the payload to send to a given client.
      */
     public void broadcast(Function<BroadcastTarget, Optional<?>> payload) {
-        Set<BroadcastTarget> clientCopies;
-        synchronized (this) {
-            clientCopies = Set.copyOf(this.clients.values());
-        }
-        log.info("Broadcasting data to {} sessions.", clientCopies.size());
-        for (var client : clientCopies) {
+        log.info("Broadcasting data to {} sessions.", clients.size());
+        Map<Object, Object> encoded = new HashMap<>();
+        for (var client : clients.values()) {
             if (client.isOpen()) {
-                payload.apply(client).ifPresent(client::sendOrLog);
+                payload.apply(client)
+                        .map(p -> encoded.computeIfAbsent(p, encoder))
+                        .ifPresent(p -> send(client, p));
             }
         }
     }
+
+    /** Send without waiting, so that a slow client does not delay the next ones. */
+    private static void send(BroadcastTarget client, Object payload) {
+        client.sendAsync(payload).whenComplete((result, error) -> {
+            if (error != null) {
+                log.warn("Sending message to {} failed", client, error);
+            }
+        });
+    }
 }
@@ -0,0 +1,21 @@
+package org.gamboni.tech.web.ws;
+
+/** A payload already serialised for the wire. {@link BroadcastTarget} implementations send its text as-is, which
+ * lets {@link ClientCollection} serialise a broadcast once instead of once per client.
+ *
+ * @param text the serialised payload.
+ * @param source the payload before serialisation, for targets needing to inspect or merge it (see
+ *               {@link OutboundQueue.OverflowPolicy#COALESCE}).
+ * @param compactText the payload serialised in a compact format, for clients supporting it, or {@code null} if
+ *                    there is none.
+ */
+public record EncodedPayload(String text, Object source, String compactText) {
+    public EncodedPayload(String text, Object source) {
+        this(text, source, null);
+    }
+
+    /** The text to send to a client, depending on whether it supports the compact format. */
+    public String text(boolean compact) {
+        return (compact && compactText != null) ? compactText : text;
+    }
+}
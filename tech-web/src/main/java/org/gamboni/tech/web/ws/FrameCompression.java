@@ -0,0 +1,139 @@
+package org.gamboni.tech.web.ws;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+
+/** Compression of messages sent to websocket clients.
+ * <p>
+ * This is done by the application rather than with the {@code permessage-deflate} extension, which compresses
+ * every frame, so that messages too small to benefit from it can be sent as they are. Messages of at least
+ * {@code threshold} UTF-8 bytes are compressed in zlib format and sent as binary frames, which pages decompress
+ * (see {@link org.gamboni.tech.web.js.JsPersistentWebSocket#withCompression()}). Other messages are sent as text.
+ * Clients request compression with the {@value #PARAMETER} parameter of the websocket url; others always receive
+ * text.
+ * </p><p>
+ * Transport-level {@code permessage-deflate} should then be disabled, to avoid compressing messages twice.
+ * </p>
+ */
+public class FrameCompression {
+
+    /** Name of the websocket url query parameter through which clients request compression. */
+    public static final String PARAMETER = "deflate";
+
+    /** Never compress. */
+    public static final FrameCompression DISABLED = new FrameCompression(Integer.MAX_VALUE, Deflater.DEFAULT_COMPRESSION);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /** Only one compression in this many is timed, as reading the thread CPU time is a system call. */
+    private static final int CPU_SAMPLING = 16;
+
+    private final int threshold;
+    private final int level;
+
+    /** Recently compressed messages, by identity, as a broadcast sends the same text instance (the JSON or compact
+     * text of its {@link EncodedPayload}) to many clients. Entries go away with their text. */
+    private final Cache<String, Compressed> recent = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(256)
+            .build();
+
+    /** @param bytes the compressed text, or {@code null} if it is not to be compressed. */
+    private record Compressed(int rawLength, byte[] bytes) {}
+
+    /**
+     * @param threshold minimum size, in UTF-8 bytes, of messages to compress.
+     * @param level the {@link Deflater} compression level, trading CPU time for bandwidth.
+     */
+    public FrameCompression(int threshold, int level) {
+        Preconditions.checkArgument(threshold >= 0, "Negative threshold");
+        Preconditions.checkArgument(level == Deflater.DEFAULT_COMPRESSION ||
+                (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION),
+                "Invalid compression level %s", level);
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    public boolean isEnabled() {
+        return threshold != Integer.MAX_VALUE;
+    }
+
+    /** Return the given message compressed, or {@code null} if it should be sent as text because the client did not
+     * request compression, the message is below the threshold, or compressing did not make it smaller.
+     *
+     * @param text the message to send.
+     * @param requested whether the client requested compression.
+     * @param stats where to record the message.
+     */
+    public byte[] compress(String text, boolean requested, TransferStats stats) {
+        if (!requested || text.length() * 3L < threshold) {
+            // not worth encoding: a char takes at most three UTF-8 bytes
+            long size = utf8Length(text);
+            stats.record(size, size, false, 0);
+            return null;
+        }
+        long cpu = 0;
+        Compressed compressed = recent.getIfPresent(text);
+        if (compressed == null) {
+            boolean timed = ThreadLocalRandom.current().nextInt(CPU_SAMPLING) == 0;
+            long start = timed ? THREADS.getCurrentThreadCpuTime() : 0;
+            compressed = compress(text);
+            if (timed) {
+                // scaled up to stand for the compressions that were not timed
+                cpu = (THREADS.getCurrentThreadCpuTime() - start) * CPU_SAMPLING;
+            }
+            recent.put(text, compressed);
+        }
+        byte[] bytes = compressed.bytes();
+        stats.record(compressed.rawLength(), (bytes == null) ? compressed.rawLength() : bytes.length, bytes != null, cpu);
+        return bytes;
+    }
+
+    private Compressed compress(String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = (utf8.length >= threshold) ? deflate(utf8) : null;
+        return new Compressed(utf8.length, (bytes == null || bytes.length >= utf8.length) ? null : bytes);
+    }
+
+    private byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            var out = new ByteArrayOutputStream(data.length / 4 + 16);
+            byte[] buffer = new byte[Math.min(data.length + 16, 8192)];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
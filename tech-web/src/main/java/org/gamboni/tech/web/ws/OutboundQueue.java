@@ -0,0 +1,154 @@
+package org.gamboni.tech.web.ws;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/** Bounded queue of messages waiting to be sent to one client. Messages are handed to the transport one at a time,
+ * in order, without blocking the caller, so that a slow client only delays its own messages.
+ */
+public class OutboundQueue {
+
+    /** What to do with a message sent while the queue is full. */
+    public enum OverflowPolicy {
+        /** Discard the new message. */
+        DROP,
+        /** Merge each message into the last queued one, if any, as soon as it is queued (see
+         * {@link #OutboundQueue(int, OverflowPolicy, Function, BinaryOperator, Runnable) coalescer}), so that a client
+         * falling behind receives fewer, larger messages. Disconnect if the queue is full of messages that cannot be
+         * merged. */
+        COALESCE,
+        /** Close the connection. The client is expected to reconnect and resynchronise. */
+        DISCONNECT
+    }
+
+    private record Entry(Object payload, CompletableFuture<Void> done) {}
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Function<Object, ? extends CompletionStage<?>> transport;
+    private final BinaryOperator<Object> coalescer;
+    private final Runnable disconnect;
+
+    private final Deque<Entry> pending = new ArrayDeque<>();
+    /** True while the transport is busy with a message. */
+    private boolean sending = false;
+
+    /**
+     * @param capacity maximum number of messages waiting to be sent, not counting the one being sent.
+     * @param policy what to do when the queue is full.
+     * @param transport asynchronously sends a message.
+     * @param coalescer merges an older queued message with a newer one, or returns {@code null} if they cannot be
+     *                  merged. Only used with {@link OverflowPolicy#COALESCE}.
+     * @param disconnect closes the connection.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy,
+                         Function<Object, ? extends CompletionStage<?>> transport,
+                         BinaryOperator<Object> coalescer,
+                         Runnable disconnect) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        this.capacity = capacity;
+        this.policy = policy;
+        this.transport = transport;
+        this.coalescer = coalescer;
+        this.disconnect = disconnect;
+    }
+
+    /** Queue the given message. The returned stage completes when the message has been sent, or fails if it could
+     * not be sent or was rejected by the overflow policy. */
+    public CompletionStage<Void> send(Object payload) {
+        Entry entry = new Entry(payload, new CompletableFuture<>());
+        boolean start;
+        List<Entry> dropped;
+        synchronized (this) {
+            CompletionStage<Void> merged = (policy == OverflowPolicy.COALESCE) ? coalesce(entry) : null;
+            if (merged != null) {
+                return merged;
+            } else if (pending.size() < capacity) {
+                pending.add(entry);
+                start = !sending;
+                sending = true;
+                dropped = null;
+            } else {
+                CompletionStage<Void> accepted = overflow(entry);
+                if (accepted != null) {
+                    return accepted;
+                }
+                start = false;
+                dropped = new ArrayList<>(pending);
+                pending.clear();
+            }
+        }
+        if (start) {
+            sendNext();
+        } else if (dropped != null) {
+            var failure = new IllegalStateException("Outbound queue full, disconnecting");
+            dropped.forEach(e -> e.done().completeExceptionally(failure));
+            disconnect.run();
+            return CompletableFuture.failedFuture(failure);
+        }
+        return entry.done();
+    }
+
+    /** Number of messages waiting to be sent. */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /** Merge the given entry into the last pending one, with the lock held. Return {@code null} if there is no
+     * pending entry or they cannot be merged. */
+    private CompletionStage<Void> coalesce(Entry entry) {
+        Entry last = pending.peekLast();
+        if (last == null) {
+            return null;
+        }
+        Object merged = coalescer.apply(last.payload(), entry.payload());
+        if (merged == null) {
+            return null;
+        }
+        pending.removeLast();
+        pending.add(new Entry(merged, last.done()));
+        return last.done();
+    }
+
+    /** Apply the overflow policy, with the lock held. Return {@code null} if the connection must be closed. */
+    private CompletionStage<Void> overflow(Entry entry) {
+        if (policy == OverflowPolicy.DROP) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Outbound queue full, message dropped"));
+        } else {
+            return null;
+        }
+    }
+
+    private void sendNext() {
+        Entry entry;
+        synchronized (this) {
+            entry = pending.poll();
+            if (entry == null) {
+                sending = false;
+                return;
+            }
+        }
+        CompletionStage<?> sent;
+        try {
+            sent = transport.apply(entry.payload());
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete((result, error) -> {
+            if (error == null) {
+                entry.done().complete(null);
+            } else {
+                entry.done().completeExceptionally(error);
+            }
+            sendNext();
+        });
+    }
+}
@@ -0,0 +1,44 @@
+package org.gamboni.tech.web.ws;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counts the messages sent to a client, for monitoring and for tuning {@link FrameCompression}. Safe for concurrent
+ * use. */
+public class TransferStats {
+
+    /**
+     * @param messages number of messages sent.
+     * @param compressedMessages number of messages sent compressed.
+     * @param rawBytes total size of the messages before compression, in UTF-8 bytes.
+     * @param sentBytes total size of the messages as sent (before any transport-level compression).
+     * @param compressionCpuNanos CPU time spent compressing messages, estimated from a sample of them.
+     */
+    public record Snapshot(long messages, long compressedMessages, long rawBytes, long sentBytes,
+                           long compressionCpuNanos) {
+        /** How many times smaller messages got thanks to compression: {@code 1} if nothing was compressed. */
+        public double compressionRatio() {
+            return (sentBytes == 0) ? 1 : (double) rawBytes / sentBytes;
+        }
+    }
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder compressedMessages = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder compressionCpuNanos = new LongAdder();
+
+    void record(long raw, long sent, boolean compressed, long cpuNanos) {
+        messages.increment();
+        if (compressed) {
+            compressedMessages.increment();
+        }
+        rawBytes.add(raw);
+        sentBytes.add(sent);
+        compressionCpuNanos.add(cpuNanos);
+    }
+
+    public Snapshot get() {
+        return new Snapshot(messages.sum(), compressedMessages.sum(), rawBytes.sum(), sentBytes.sum(),
+                compressionCpuNanos.sum());
+    }
+}
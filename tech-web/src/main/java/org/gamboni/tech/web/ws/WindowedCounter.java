@@ -0,0 +1,58 @@
+package org.gamboni.tech.web.ws;
+
+import com.google.common.base.Preconditions;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/** Counts events over a sliding window, with a one-second resolution, to monitor their rate. Safe for concurrent
+ * use. */
+public class WindowedCounter {
+
+    private final LongSupplier millis;
+    /** Number of events in each second of the window, indexed by second modulo the window length. */
+    private final long[] counts;
+    /** The second each {@link #counts} slot was last used for. */
+    private final long[] seconds;
+
+    public WindowedCounter(Duration window) {
+        this(window, System::currentTimeMillis);
+    }
+
+    /**
+     * @param window how far back to count events. Rounded down to whole seconds.
+     * @param millis the current time, in milliseconds.
+     */
+    WindowedCounter(Duration window, LongSupplier millis) {
+        Preconditions.checkArgument(window.getSeconds() > 0, "Window must last at least a second");
+        this.millis = millis;
+        this.counts = new long[(int) window.getSeconds()];
+        this.seconds = new long[counts.length];
+    }
+
+    public synchronized void increment() {
+        long now = millis.getAsLong() / 1000;
+        int slot = (int) (now % counts.length);
+        if (seconds[slot] != now) {
+            seconds[slot] = now;
+            counts[slot] = 0;
+        }
+        counts[slot]++;
+    }
+
+    /** Number of events during the window ending now. */
+    public synchronized long count() {
+        long now = millis.getAsLong() / 1000;
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (now - seconds[i] < counts.length) {
+                total += counts[i];
+            }
+        }
+        return total;
+    }
+
+    public Duration getWindow() {
+        return Duration.ofSeconds(counts.length);
+    }
+}
@@ -0,0 +1,25 @@
+package org.gamboni.tech.web.js;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class JsMinifierTest {
+
+    @Test
+    public void stripsWhitespace() {
+        assertEquals("function f(a,b){return a+b;}",
+                JsMinifier.stripWhitespace("function f(a, b) {\n  return a + b;\n}"));
+    }
+
+    @Test
+    public void keepsStrings() {
+        assertEquals("let s='a  b'+\"c\\\" d\"+`e  ${f}`;",
+                JsMinifier.stripWhitespace("let s = 'a  b' + \"c\\\" d\" + `e  ${f}`;"));
+    }
+
+    @Test
+    public void keepsSeparators() {
+        assertEquals("let x=a+ +b-(-c)\nx++\ny", JsMinifier.stripWhitespace("let x = a + +b - (-c)\nx++\n\n  y"));
+    }
+}
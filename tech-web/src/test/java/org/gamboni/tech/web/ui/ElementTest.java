@@ -0,0 +1,77 @@
+package org.gamboni.tech.web.ui;
+
+import org.gamboni.tech.web.js.JavaScript;
+import org.gamboni.tech.web.ui.value.StringValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.gamboni.tech.web.ui.Html.attribute;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ElementTest {
+
+    private final Element element = new Element("p", List.of(attribute("title", "a \"b\"")),
+            Html.escape("x < y"),
+            new Tag("br"),
+            new Element("b", Html.escape("é")));
+
+    @Test
+    public void rendersToString() {
+        assertEquals("<p title=\"a &quot;b&quot;\">x &lt; y<br><b>é</b></p>", element.toString());
+    }
+
+    @Test
+    public void rendersToStream() throws IOException {
+        var out = new ByteArrayOutputStream();
+        element.render(out, StandardCharsets.UTF_8);
+        assertEquals(element.toString(), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void prerendersOnce() {
+        var prerendered = element.prerendered();
+        assertEquals(element.toString(), prerendered.toString());
+        assertEquals(element.withAttribute(attribute("id", "p1")).toString(),
+                prerendered.withAttribute(attribute("id", "p1")).toString());
+    }
+
+    @Test
+    public void rendersConstantSubtreesOnce() {
+        var renders = new AtomicInteger();
+        var counting = new Html() {
+            @Override
+            public JavaScript.JsStatement javascriptCreate(
+                    Function<JavaScript.JsHtmlElement, ? extends JavaScript.JsFragment> continuation) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public boolean isConstant() {
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                renders.incrementAndGet();
+                return "x";
+            }
+        };
+        var constant = new Element("div", element, counting);
+        assertTrue(constant.isConstant());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("<div>" + element + "x</div>", constant.toString());
+        }
+        assertEquals(2, renders.get());
+
+        var dynamic = new Element("div", element, Html.escape(StringValue.of(new JavaScript.JsGlobal("x"))));
+        assertFalse(dynamic.isConstant());
+    }
+}
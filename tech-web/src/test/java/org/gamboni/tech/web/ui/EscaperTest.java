@@ -0,0 +1,33 @@
+package org.gamboni.tech.web.ui;
+
+import org.gamboni.tech.web.js.JavaScript;
+import org.gamboni.tech.web.ui.value.StringValue;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class EscaperTest {
+
+    @Test
+    public void returnsCleanTextUnchanged() {
+        String text = "Nothing to see here, é";
+        assertSame(text, Escaper.HTML_TEXT.escape(text));
+        assertSame(text, Escaper.HTML_ATTRIBUTE.escape(text));
+    }
+
+    @Test
+    public void escapesInOnePass() {
+        assertEquals("a &lt;b&gt; &amp;amp; \"c\"", Escaper.HTML_TEXT.escape("a <b> &amp; \"c\""));
+        assertEquals("&quot;a&quot; &amp; <b>", Escaper.HTML_ATTRIBUTE.escape("\"a\" & <b>"));
+        assertEquals("it\\'s a \\\\", Escaper.JS_STRING.escape("it's a \\"));
+    }
+
+    @Test
+    public void escapesHtml() {
+        assertEquals("x &lt; y &amp;&amp; y &gt; z", Html.escape("x < y && y > z").toString());
+        assertEquals("x &amp; y", Html.escape(StringValue.of("x & y")).toString());
+        assertEquals("\"&quot;a&quot; &amp; b\"", Html.quote("\"a\" & b"));
+        assertEquals("'it\\'s'", JavaScript.literal("it's").format(JavaScript.Scope.NO_DECLARATION));
+    }
+}
@@ -0,0 +1,80 @@
+package org.gamboni.tech.web.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ScriptTest {
+
+    @Test
+    public void rendersOnce() throws IOException {
+        var script = new Script();
+        script.add(() -> "let x = 1;");
+        var rendered = script.getRendered();
+
+        assertSame(rendered, script.getRendered());
+        assertEquals("let x = 1;", script.render());
+        assertEquals("let x = 1;", new String(
+                new GZIPInputStream(new ByteArrayInputStream(rendered.gzip())).readAllBytes(),
+                StandardCharsets.UTF_8));
+        assertEquals("/script.js?v=" + rendered.hash(), script.getVersionedUrl());
+        assertThrows(IllegalStateException.class, () -> script.add(() -> ""));
+    }
+
+    @Test
+    public void matchesEtag() {
+        var script = new Script();
+        script.add(() -> "f();");
+        var rendered = script.getRendered();
+
+        assertTrue(rendered.matches(rendered.etag()));
+        assertTrue(rendered.matches("\"other\", W/" + rendered.etag()));
+        assertFalse(rendered.matches("\"other\""));
+        assertFalse(rendered.matches(null));
+        assertEquals(Script.IMMUTABLE_CACHE_CONTROL, rendered.cacheControl(rendered.hash()));
+        assertEquals(Script.REVALIDATE_CACHE_CONTROL, rendered.cacheControl(null));
+    }
+
+    @Test
+    public void trustsPrerenderedScript() {
+        var script = new Script();
+        script.add(() -> "let x = null;");
+        script.setPrerendered("prerendered");
+        assertEquals("prerendered", script.render());
+    }
+
+    @Test
+    public void checksPrerenderedScript() {
+        var built = new Script();
+        built.add(() -> "let x = 1;");
+        String hash = built.sourceHash();
+
+        var same = new Script();
+        same.add(() -> "let x = 1;");
+        same.setPrerendered("prerendered", hash);
+        assertEquals("prerendered", same.render());
+
+        var different = new Script();
+        different.add(() -> "let x = null;");
+        different.setPrerendered("prerendered", hash);
+        assertEquals("let x = null;", different.render());
+    }
+
+    @Test
+    public void negotiatesGzip() {
+        assertTrue(Script.Rendered.acceptsGzip("gzip, deflate, br"));
+        assertTrue(Script.Rendered.acceptsGzip("br;q=1.0, gzip;q=0.8"));
+        assertFalse(Script.Rendered.acceptsGzip("gzip;q=0"));
+        assertFalse(Script.Rendered.acceptsGzip("identity"));
+        assertFalse(Script.Rendered.acceptsGzip(null));
+    }
+}
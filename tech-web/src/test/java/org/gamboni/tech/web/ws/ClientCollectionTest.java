@@ -0,0 +1,122 @@
+package org.gamboni.tech.web.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClientCollectionTest {
+
+    private final List<Object> encoded = new ArrayList<>();
+    private final ClientCollection<String> clients = new ClientCollection<>(payload -> {
+        encoded.add(payload);
+        return new EncodedPayload(payload.toString(), payload);
+    });
+
+    @Test
+    public void encodesBroadcastOnce() {
+        var a = new Target();
+        var b = new Target();
+        clients.put("a", a);
+        clients.put("b", b);
+
+        clients.broadcast((Object) List.of(1, 2));
+
+        assertEquals(List.of(List.of(1, 2)), encoded);
+        assertEquals(List.of(new EncodedPayload("[1, 2]", List.of(1, 2))), a.received);
+        assertEquals(a.received, b.received);
+    }
+
+    @Test
+    public void sharesEncodingOfEqualPayloads() {
+        var a = new Target();
+        var b = new Target();
+        var c = new Target();
+        clients.put("a", a);
+        clients.put("b", b);
+        clients.put("c", c);
+
+        clients.broadcast(target -> Optional.of(target == c ? "other" : "same"));
+
+        assertEquals(2, encoded.size());
+        assertEquals(List.of(new EncodedPayload("same", "same")), a.received);
+        assertEquals(List.of(new EncodedPayload("same", "same")), b.received);
+        assertEquals(List.of(new EncodedPayload("other", "other")), c.received);
+    }
+
+    @Test
+    public void countsConnections() {
+        clients.put("a", new Target());
+        clients.put("b", new Target());
+        clients.remove("a");
+        clients.remove("a");
+
+        assertEquals(new ClientCollection.Stats(1, 2, 1, 2, 1), clients.getStats());
+    }
+
+    @Test
+    public void countsRecentConnections() {
+        long[] now = {0};
+        var clients = new ClientCollection<String>(Function.identity(), () -> now[0]);
+        clients.put("a", new Target());
+        now[0] = 30_000;
+        clients.put("b", new Target());
+        clients.remove("a");
+        assertEquals(new ClientCollection.Stats(1, 2, 1, 2, 1), clients.getStats());
+
+        now[0] = 61_000;
+        assertEquals(new ClientCollection.Stats(1, 2, 1, 1, 1), clients.getStats());
+        assertEquals(1.0 / 60, clients.getStats().connectRate());
+
+        now[0] = 200_000;
+        assertEquals(new ClientCollection.Stats(1, 2, 1, 0, 0), clients.getStats());
+    }
+
+    @Test
+    public void replacesClientsOfTheSameSession() {
+        var first = new Target();
+        var second = new Target();
+        clients.put("a", first);
+        clients.put("a", first);
+        assertEquals(new ClientCollection.Stats(1, 1, 0, 1, 0), clients.getStats());
+
+        clients.put("a", second);
+        assertEquals(new ClientCollection.Stats(1, 2, 1, 2, 1), clients.getStats());
+        assertTrue(first.closed);
+        assertSame(second, clients.get("a"));
+    }
+
+    private static class Target implements BroadcastTarget {
+        final List<Object> received = new ArrayList<>();
+        boolean closed = false;
+
+        @Override
+        public void sendOrThrow(Object payload) {
+            received.add(payload);
+        }
+
+        @Override
+        public void sendOrLog(Object payload) {
+            received.add(payload);
+        }
+
+        @Override
+        public void onClose(Runnable task) {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void markClosed() {
+            closed = true;
+        }
+    }
+}
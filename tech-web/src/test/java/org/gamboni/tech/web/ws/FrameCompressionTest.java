@@ -0,0 +1,63 @@
+package org.gamboni.tech.web.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrameCompressionTest {
+
+    private final FrameCompression compression = new FrameCompression(100, Deflater.BEST_SPEED);
+    private final TransferStats stats = new TransferStats();
+
+    @Test
+    public void compressesLargeMessages() throws Exception {
+        String text = "{\"key\":\"item\",\"text\":\"é\"},".repeat(20);
+        byte[] compressed = compression.compress(text, true, stats);
+
+        var inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] buffer = new byte[1000];
+        int length = inflater.inflate(buffer);
+        assertEquals(text, new String(buffer, 0, length, StandardCharsets.UTF_8));
+
+        var snapshot = stats.get();
+        assertEquals(1, snapshot.compressedMessages());
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, snapshot.rawBytes());
+        assertEquals(compressed.length, snapshot.sentBytes());
+        assertTrue(snapshot.compressionRatio() > 5, snapshot.toString());
+
+        // broadcasts compress once
+        assertSame(compressed, compression.compress(text, true, stats));
+    }
+
+    @Test
+    public void reusesInterleavedMessages() {
+        String json = "{\"key\":\"item\"},".repeat(20);
+        String compact = "[\"item\"],".repeat(20);
+        byte[] compressedJson = compression.compress(json, true, stats);
+        byte[] compressedCompact = compression.compress(compact, true, stats);
+
+        assertSame(compressedJson, compression.compress(json, true, stats));
+        assertSame(compressedCompact, compression.compress(compact, true, stats));
+        // equal but distinct texts are compressed again
+        assertNotSame(compressedJson, compression.compress(new String(json), true, stats));
+    }
+
+    @Test
+    public void sendsSmallMessagesAsText() {
+        assertNull(compression.compress("{\"key\":\"é\"}", true, stats));
+        assertNull(compression.compress("x".repeat(200), false, stats));
+        assertNull(FrameCompression.DISABLED.compress("x".repeat(200), true, stats));
+
+        assertEquals(new TransferStats.Snapshot(3, 0, 412, 412, 0), stats.get());
+        assertEquals(1.0, stats.get().compressionRatio());
+    }
+}
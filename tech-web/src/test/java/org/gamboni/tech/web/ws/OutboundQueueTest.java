@@ -0,0 +1,84 @@
+package org.gamboni.tech.web.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundQueueTest {
+
+    /** Transport completing each message only when the test says so. */
+    private final List<Object> sent = new ArrayList<>();
+    private final List<CompletableFuture<Void>> inFlight = new ArrayList<>();
+    private boolean disconnected = false;
+
+    private CompletionStage<Void> transport(Object payload) {
+        sent.add(payload);
+        var future = new CompletableFuture<Void>();
+        inFlight.add(future);
+        return future;
+    }
+
+    private OutboundQueue queue(OutboundQueue.OverflowPolicy policy) {
+        return new OutboundQueue(2, policy, this::transport,
+                (a, b) -> a + "+" + b,
+                () -> disconnected = true);
+    }
+
+    @Test
+    public void sendsInOrderOneAtATime() {
+        var queue = queue(OutboundQueue.OverflowPolicy.DISCONNECT);
+        var first = queue.send("a");
+        queue.send("b");
+        assertEquals(List.of("a"), sent);
+
+        inFlight.get(0).complete(null);
+        assertTrue(first.toCompletableFuture().isDone());
+        assertEquals(List.of("a", "b"), sent);
+    }
+
+    @Test
+    public void dropsOnOverflow() {
+        var queue = queue(OutboundQueue.OverflowPolicy.DROP);
+        queue.send("a"); // being sent
+        queue.send("b");
+        queue.send("c");
+        var dropped = queue.send("d");
+
+        assertTrue(dropped.toCompletableFuture().isCompletedExceptionally());
+        assertEquals(2, queue.size());
+        assertFalse(disconnected);
+    }
+
+    @Test
+    public void coalescesPendingMessages() {
+        var queue = queue(OutboundQueue.OverflowPolicy.COALESCE);
+        queue.send("a"); // being sent
+        queue.send("b");
+        queue.send("c");
+        queue.send("d");
+        assertEquals(1, queue.size());
+
+        inFlight.get(0).complete(null);
+        assertEquals(List.of("a", "b+c+d"), sent);
+    }
+
+    @Test
+    public void disconnectsOnOverflow() {
+        var queue = queue(OutboundQueue.OverflowPolicy.DISCONNECT);
+        queue.send("a");
+        var pending = queue.send("b");
+        queue.send("c");
+        queue.send("d");
+
+        assertTrue(disconnected);
+        assertTrue(pending.toCompletableFuture().isCompletedExceptionally());
+        assertEquals(0, queue.size());
+    }
+}